@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.rmen.nounours.data.HapticPattern;
+
+/**
+ * Plays haptic patterns on a {@link NounoursHapticHandler}. Patterns which
+ * overlap are merged into one timeline: the device vibrates whenever any of
+ * them vibrates. The timeline is driven by one timer thread, which only wakes
+ * up when the vibration starts or stops.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class HapticScheduler {
+
+    private final NounoursHapticHandler hapticHandler;
+    private final ScheduledExecutorService timer;
+    // The vibrations to come, in milliseconds on the nanoTime clock, sorted
+    // and without overlaps: each element is {start, end}.
+    private final List<long[]> timeline = new ArrayList<long[]>();
+    private ScheduledFuture<?> nextEdge = null;
+    private boolean isVibrating = false;
+
+    private static final Comparator<long[]> START_COMPARATOR = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] segment1, long[] segment2) {
+            return segment1[0] < segment2[0] ? -1 : segment1[0] > segment2[0] ? 1 : 0;
+        }
+    };
+
+    private final Runnable onEdge = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * @param hapticHandler
+     *            turns the vibration on and off.
+     */
+    public HapticScheduler(NounoursHapticHandler hapticHandler) {
+        this.hapticHandler = hapticHandler;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HapticScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start playing the pattern now, along with the patterns already playing.
+     *
+     * @param pattern
+     *            the pattern to play.
+     */
+    public synchronized void play(HapticPattern pattern) {
+        long now = now();
+        for (int i = 0; i < pattern.getPulseCount(); i++)
+            timeline.add(new long[] { now + pattern.getStart(i), now + pattern.getEnd(i) });
+        merge();
+        update();
+    }
+
+    /**
+     * Stop all the patterns.
+     */
+    public synchronized void stop() {
+        timeline.clear();
+        update();
+    }
+
+    /**
+     * Stop the vibration and the timer thread.
+     */
+    public synchronized void shutdown() {
+        stop();
+        timer.shutdown();
+    }
+
+    /**
+     * Sort the timeline and join the vibrations which overlap or touch.
+     */
+    private void merge() {
+        Collections.sort(timeline, START_COMPARATOR);
+        List<long[]> merged = new ArrayList<long[]>(timeline.size());
+        long[] last = null;
+        for (long[] segment : timeline) {
+            if (last != null && segment[0] <= last[1]) {
+                last[1] = Math.max(last[1], segment[1]);
+            } else {
+                last = segment;
+                merged.add(segment);
+            }
+        }
+        timeline.clear();
+        timeline.addAll(merged);
+    }
+
+    /**
+     * Set the vibration for the current time, and schedule the next change.
+     */
+    private synchronized void update() {
+        long now = now();
+        // Forget the vibrations which are over.
+        while (!timeline.isEmpty() && timeline.get(0)[1] <= now)
+            timeline.remove(0);
+        boolean shouldVibrate = !timeline.isEmpty() && timeline.get(0)[0] <= now;
+        if (shouldVibrate != isVibrating) {
+            isVibrating = shouldVibrate;
+            hapticHandler.setVibrating(shouldVibrate);
+        }
+        if (nextEdge != null)
+            nextEdge.cancel(false);
+        nextEdge = null;
+        if (!timeline.isEmpty() && !timer.isShutdown()) {
+            long edge = shouldVibrate ? timeline.get(0)[1] : timeline.get(0)[0];
+            nextEdge = timer.schedule(onEdge, edge - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
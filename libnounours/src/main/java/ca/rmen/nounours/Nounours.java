@@ -36,7 +36,7 @@ import java.util.*;
  * @author Carmen Alvarez
  * 
  */
-public abstract class Nounours {
+public abstract class Nounours implements NounoursInputListener {
     static final String PROP_IDLE_PING_INTERVAL = "idle.ping.interval";
 
     private static final String PROP_DROP_VIBRATE_DURATION = "drop.vibrate.duration";
@@ -45,9 +45,12 @@ public abstract class Nounours {
     private static final String PROP_FLING_FACTOR = "fling.factor";
     private static final String PROP_FLING_PRECISION = "fling.precision";
     private static final String PROP_MIN_SHAKE_SPEED = "shake.factor";
+    private static final String PROP_RANDOM_MOTION_SMALL_CHANGES = "random.motion.small.changes";
 
     private Random random = null;
-    private boolean isShaking = false;
+    private long randomSeed;
+    // The time the current shake animation ends.
+    private long shakeEndTimestamp = 0;
     private Image curImage = null;
     private Theme curTheme = null;
     private boolean loaded = false;
@@ -71,8 +74,33 @@ public abstract class Nounours {
     private NounoursSoundHandler soundHandler = null;
     private NounoursAnimationHandler animationHandler = null;
     private NounoursVibrateHandler vibrateHandler = null;
+    // Only used if the vibrate handler is also a haptic handler.
+    private HapticScheduler hapticScheduler = null;
+    // Map of animation id to the vibration of the animation, for the current
+    // theme.
+    private final Map<String, HapticPattern> hapticPatterns = new HashMap<String, HapticPattern>();
     private final NounoursRecorder nounoursRecorder = new NounoursRecorder();
+    // Chooses the images of the random motions, for the current theme.
+    private volatile RandomMotionGenerator motionGenerator = null;
+    private boolean favorSmallPoseChanges = false;
+    private final RandomMotion randomMotion = new RandomMotion(this);
+    // The tasks run when idle, created once.
+    private final Runnable onIdleTask = new Runnable() {
+        public void run() {
+            onIdle();
+        }
+    };
+    private final Runnable randomMotionTask = new Runnable() {
+        public void run() {
+            startRandomMotion();
+        }
+    };
     private StreamLoader streamLoader;
+    // Each nounours has its own timer thread, so that a slow frame of one
+    // nounours doesn't delay the others, unless it's given a shared clock.
+    private final SystemClock ownClock = new SystemClock();
+    private NounoursClock clock = ownClock;
+    private NounoursInputListener inputListener = null;
 
     private Properties nounoursProperties;
 
@@ -115,13 +143,17 @@ public abstract class Nounours {
             return;
         // If an animation is running, stop it..
         curAnimation = getCurrentAnimation();
-        if (animationHandler.isAnimationRunning()) {
+        if (isAnimationRunning()) {
             stopAnimation();
         }
         curAnimation = animation;
         // Vibrate if necessary
-        if (animation.isVibrate() && enableVibrate)
-            vibrateHandler.doVibrate(animation.getDuration(), getVibrateInterval());
+        if (animation.isVibrate() && enableVibrate) {
+            if (hapticScheduler != null)
+                hapticScheduler.play(getHapticPattern(animation));
+            else
+                vibrateHandler.doVibrate(animation.getDuration(), getVibrateInterval());
+        }
         // Play a sound if necessary
         if (animation.getSoundId() != null)
             soundHandler.playSound(animation.getSoundId());
@@ -137,11 +169,25 @@ public abstract class Nounours {
         doAnimation(animation, false);
     }
 
+    /**
+     * @return the vibration of the animation, compiled when the theme was
+     *         loaded, or now for animations created at runtime.
+     */
+    private HapticPattern getHapticPattern(Animation animation) {
+        synchronized (hapticPatterns) {
+            HapticPattern pattern = hapticPatterns.get(animation.getId());
+            if (pattern == null)
+                pattern = HapticPattern.compile(animation, vibrateInterval);
+            return pattern;
+        }
+    }
+
     /**
      * Stop the current animation, if one is running.
      */
     @SuppressWarnings("WeakerAccess")
     public void stopAnimation() {
+        randomMotion.stop();
         animationHandler.stopAnimation();
         soundHandler.stopSound();
         curAnimation = null;
@@ -152,38 +198,39 @@ public abstract class Nounours {
      */
     @SuppressWarnings("WeakerAccess")
     public boolean isAnimationRunning() {
-        return animationHandler.isAnimationRunning();
+        return animationHandler.isAnimationRunning() || randomMotion.isRunning();
     }
 
     /**
      * @return the current animation, if one is running. Otherwise return null.
      */
     private Animation getCurrentAnimation() {
-        if (!animationHandler.isAnimationRunning())
+        if (!isAnimationRunning())
             // Reset the current animation to null, if it is not running
             // anymore.
             curAnimation = null;
         return curAnimation;
     }
 
-    Animation createRandomAnimation() {
-        if (!loaded)
-            return null;
-        int interval = 100 + random.nextInt(400);
-        int repeat = 1;// 1 + random.nextInt(3);
-        int numberFrames = 2 + random.nextInt(8);
+    /**
+     * Start a random walk from the current image, through adjacent images.
+     * This stops the current animation.
+     */
+    void startRandomMotion() {
+        RandomMotionGenerator generator = motionGenerator;
+        if (!loaded || isLoading || generator == null)
+            return;
+        stopAnimation();
+        randomMotion.start(generator, random, generator.getIndex(curImage));
+    }
 
-        Animation result = new Animation("random" + System.currentTimeMillis(), "random", interval, repeat, false,
-                false, null);
-        Image curAnimationImage = curImage;
-        for (int i = 0; i < numberFrames; i++) {
-            if (curAnimationImage == null)
-                continue;
-            float duration = 0.5f + random.nextFloat() * 2.0f;
-            result.addImage(curAnimationImage, duration);
-            curAnimationImage = getRandomImage(curAnimationImage);
-        }
-        return result;
+    /**
+     * Display a frame of a random motion.
+     */
+    void showMotionFrame(Image image) {
+        setImage(image);
+        if (nounoursRecorder.isRecording() && !nounoursRecorder.isPaused())
+            nounoursRecorder.addImage(image);
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -191,15 +238,66 @@ public abstract class Nounours {
         return nounoursRecorder;
     }
 
+    /**
+     * Use the given clock instead of the system clock. Call this before
+     * {@link #init}.
+     *
+     * @param clock the source of time of this nounours and its recorder.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setClock(NounoursClock clock) {
+        this.clock = clock;
+        nounoursRecorder.setClock(clock);
+    }
+
+    public NounoursClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Stop the animations and the idle checks of this nounours, and stop the
+     * thread of its own clock. A clock given to {@link #setClock} isn't
+     * stopped, since it may be shared. This nounours can't be used after this.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void release() {
+        debug("release");
+        if (pinger != null)
+            pinger.stop();
+        if (animationHandler != null)
+            stopAnimation();
+        ownClock.shutdown();
+    }
+
+    /**
+     * @param inputListener notified of each user input, before it is handled, or null.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setInputListener(NounoursInputListener inputListener) {
+        this.inputListener = inputListener;
+    }
+
+    /**
+     * Seed the random generator, which chooses the random animations. Two
+     * nounours with the same seed, given the same input at the same times,
+     * choose the same random animations.
+     *
+     * @param seed the new seed.
+     */
+    public void setRandomSeed(long seed) {
+        randomSeed = seed;
+        random = new Random(seed);
+    }
 
-    private Image getRandomImage(Image fromImage) {
-        List<Image> allAdjacentImages = fromImage.getAllAdjacentImages();
-        if (allAdjacentImages.size() == 0)
-            return null;
-        int toImageNumber = random.nextInt(allAdjacentImages.size());
-        return allAdjacentImages.get(toImageNumber);
+    /**
+     * @return the last seed given to the random generator.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public long getRandomSeed() {
+        return randomSeed;
     }
 
+
     /**
      * Reads the CSV files containing the image, feature, and animation data.
      * Starts the idle counter which will launch {{@link #onIdle()} after
@@ -223,7 +321,7 @@ public abstract class Nounours {
         debug("init");
 
         this.streamLoader = streamLoader;
-        random = new Random(System.currentTimeMillis());
+        setRandomSeed(clock.currentTimeMillis());
         initHandlersAndThemes(pAnimationHandler, pSoundHandler, pVibrateHandler, nounoursPropertiesFile, themeFile);
         useTheme(themeId);
         resetIdle();
@@ -231,7 +329,19 @@ public abstract class Nounours {
 
         // Start the keep-alive
         pinger = new NounoursIdlePinger(this);
-        new Thread(pinger).start();
+        startIdlePinger(pinger);
+    }
+
+    /**
+     * Start the task which periodically checks this instance for idleness, on
+     * the clock of this instance. Subclasses which check many instances from
+     * one shared thread, by calling {@link #ping()} themselves, may override
+     * this to do nothing.
+     *
+     * @param pinger pings this instance, and schedules its next run, when run.
+     */
+    protected void startIdlePinger(Runnable pinger) {
+        clock.schedule(pinger, 0);
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -252,6 +362,8 @@ public abstract class Nounours {
         this.animationHandler = pAnimationHandler;
         this.soundHandler = pSoundHandler;
         this.vibrateHandler = pVibrateHandler;
+        if (pVibrateHandler instanceof NounoursHapticHandler)
+            hapticScheduler = new HapticScheduler((NounoursHapticHandler) pVibrateHandler);
         // read application properties
         nounoursProperties = new Properties();
         nounoursProperties.load(nounoursPropertiesFile);
@@ -261,6 +373,7 @@ public abstract class Nounours {
         idleTimeout = Util.getLongProperty(nounoursProperties, PROP_IDLE_TIME, idleTimeout);
         pingInterval = Util.getLongProperty(nounoursProperties, PROP_IDLE_PING_INTERVAL, pingInterval);
         flingPrecision = (int) Util.getLongProperty(nounoursProperties, PROP_FLING_PRECISION, flingPrecision);
+        favorSmallPoseChanges = Boolean.parseBoolean(getProperty(PROP_RANDOM_MOTION_SMALL_CHANGES));
 
         // try first to get remote themes.
         if (themes == null || themes.isEmpty()) {
@@ -273,6 +386,30 @@ public abstract class Nounours {
 
     protected abstract boolean cacheResources();
 
+    /**
+     * Compile the vibrations of the animations of the current theme.
+     */
+    private void compileHapticPatterns() {
+        if (hapticScheduler == null)
+            return;
+        synchronized (hapticPatterns) {
+            hapticPatterns.clear();
+            for (Animation animation : curTheme.getAnimations().values()) {
+                if (animation.isVibrate())
+                    hapticPatterns.put(animation.getId(), HapticPattern.compile(animation, vibrateInterval));
+            }
+            debug("Compiled " + hapticPatterns.size() + " haptic patterns");
+        }
+    }
+
+    /**
+     * Compute the transitions of the random motions, for the current theme.
+     */
+    private void compileRandomMotion() {
+        motionGenerator = new RandomMotionGenerator(curTheme.getImages().values(),
+                favorSmallPoseChanges ? RandomMotionGenerator.SMALL_POSE_CHANGES : RandomMotionGenerator.UNIFORM);
+    }
+
     /**
      * Use the given set of images
      * 
@@ -304,10 +441,12 @@ public abstract class Nounours {
                     return;
                 }
             }
-            // Identify the "special" animations
-            for (Animation animation : curTheme.getAnimations().values()) {
+            // Add the animations, in the order of the theme.
+            for (Animation animation : curTheme.getAnimationRegistry().getAnimations()) {
                 animationHandler.addAnimation(animation);
             }
+            compileHapticPatterns();
+            compileRandomMotion();
 
             // Reload images.
             boolean cachedResources = cacheResources();
@@ -382,23 +521,14 @@ public abstract class Nounours {
      */
     public void doRandomAnimation() {
         debug("Random animation");
-        int numAnimations = getAnimations().size();
         boolean createAnimation = random.nextBoolean();
-        Animation randomAnimation;
-        if (createAnimation)
-            randomAnimation = createRandomAnimation();
-        else {
-            if (numAnimations == 0)
-                return;
-            int randomAnimationIdx = (int) (Math.random() * numAnimations);
-            Iterator<String> it = getAnimations().keySet().iterator();
-            String randomAnimationId = null;
-            for (int i = 0; i <= randomAnimationIdx && it.hasNext(); i++) {
-                randomAnimationId = it.next();
-            }
-            randomAnimation = getAnimations().get(randomAnimationId);
+        if (createAnimation) {
+            startRandomMotion();
+            return;
         }
-        doAnimation(randomAnimation, createAnimation);
+        Animation randomAnimation = curTheme.getAnimationRegistry().getWeightedRandomAnimation(random);
+        if (randomAnimation != null)
+            doAnimation(randomAnimation, false);
     }
 
     // End animation-related methods
@@ -415,6 +545,8 @@ public abstract class Nounours {
      * @param y the y-position of the pointer
      */
     public void onPress(int x, int y) {
+        if (inputListener != null)
+            inputListener.onPress(x, y);
         if (curTheme == null)
             return;
         int[] translatedPoints = Util.translate(x, y, getDeviceWidth(), getDeviceHeight(), curTheme.getWidth(),
@@ -446,6 +578,8 @@ public abstract class Nounours {
      * The subclass should call this during a mouse release event.
      */
     public void onRelease() {
+        if (inputListener != null)
+            inputListener.onRelease();
         resetIdle();
         curFeature = null;
         debug("onRelease");
@@ -454,8 +588,12 @@ public abstract class Nounours {
             if (nextImageId != null) {
                 Image nextImage = curTheme.getImages().get(nextImageId);
                 setImage(nextImage);
-                if (enableVibrate)
-                    vibrateHandler.doVibrate(dropVibrateDuration);
+                if (enableVibrate) {
+                    if (hapticScheduler != null)
+                        hapticScheduler.play(HapticPattern.continuous(dropVibrateDuration));
+                    else
+                        vibrateHandler.doVibrate(dropVibrateDuration);
+                }
                 if (nounoursRecorder.isRecording()) {
                     nounoursRecorder.addImage(curImage);
                 }
@@ -470,6 +608,8 @@ public abstract class Nounours {
      * @param y the y-position of the pointer at the end of the move
      */
     public void onMove(int x, int y) {
+        if (inputListener != null)
+            inputListener.onMove(x, y);
         resetIdle();
         boolean doRefresh = true;
         if (curTheme == null)
@@ -513,41 +653,27 @@ public abstract class Nounours {
      * The user shook the device or window.
      */
     public void onShake() {
+        if (inputListener != null)
+            inputListener.onShake();
         // Don't shake if already shaking
-        if (isShaking) {
+        if (isShaking()) {
             debug("Already shaking!");
             return;
         }
         if (curTheme.getShakeAnimation() != null) {
-            // Set the shaking flag
-            isShaking = true;
+            // We're shaking until the end of the shake animation.
+            shakeEndTimestamp = clock.currentTimeMillis() + curTheme.getShakeAnimation().getDuration();
             // Start the shake animation (separate thread)
             doAnimation(curTheme.getShakeAnimation());
-            // At the end of the shake animation, reset the shaking flag.
-            Runnable resetShake = new Runnable() {
-
-                @Override
-                public void run() {
-
-                    try {
-                        Thread.sleep(curTheme.getShakeAnimation().getDuration());
-                    } catch (InterruptedException e) {
-                        // Do nothing
-                    }
-                    isShaking = false;
-                }
-
-            };
-            new Thread(resetShake).start();
         }
     }
 
     /**
      * @return true if Nounours is currently shaking.
      */
-    @SuppressWarnings("UnusedDeclaration")
+    @SuppressWarnings("WeakerAccess")
     public boolean isShaking() {
-        return isShaking;
+        return clock.currentTimeMillis() < shakeEndTimestamp;
     }
 
     /**
@@ -565,6 +691,8 @@ public abstract class Nounours {
      * @param velY the velocity on the y-axis at the end of the fling action
      */
     public void onFling(int x, int y, float velX, float velY) {
+        if (inputListener != null)
+            inputListener.onFling(x, y, velX, velY);
         if (curTheme == null)
             return;
         int[] translatedPoints = Util.translate(x, y, getDeviceWidth(), getDeviceHeight(), curTheme.getWidth(),
@@ -631,6 +759,8 @@ public abstract class Nounours {
         debug("Idle!");
         resetIdle();
         if (curTheme != null && curTheme.getIdleAnimation() != null) {
+            // Don't interrupt an animation, but replace a random motion:
+            // doAnimation stops it.
             if (!animationHandler.isAnimationRunning())
                 doAnimation(curTheme.getIdleAnimation());
         }
@@ -642,13 +772,13 @@ public abstract class Nounours {
      */
     private boolean isIdleForSleepAnimation() {
         if (lastActionTimestamp > 0)
-            return (System.currentTimeMillis() - lastActionTimestamp > idleTimeout);
+            return (clock.currentTimeMillis() - lastActionTimestamp > idleTimeout);
         return false;
     }
 
     private boolean isIdleForRandomAnimation() {
         if (lastActionTimestamp > 0)
-            return (System.currentTimeMillis() - lastActionTimestamp > pingInterval);
+            return (clock.currentTimeMillis() - lastActionTimestamp > pingInterval);
         return false;
     }
 
@@ -666,21 +796,10 @@ public abstract class Nounours {
         if (isLoading())
             return;
         if (isIdleForSleepAnimation()) {
-            runTask(new Runnable() {
-                public void run() {
-
-                    onIdle();
-                }
-            });
+            runTask(onIdleTask);
         } else {
             if (isIdleForRandomAnimation() && !isAnimationRunning()) {
-                runTask(new Runnable() {
-                    public void run() {
-                        Animation randomAnimation = createRandomAnimation();
-                        if (randomAnimation != null)
-                            doAnimation(randomAnimation, true);
-                    }
-                });
+                runTask(randomMotionTask);
             }
         }
     }
@@ -697,7 +816,7 @@ public abstract class Nounours {
      * This is called whenever some activity has occurred.
      */
     private void resetIdle() {
-        lastActionTimestamp = System.currentTimeMillis();
+        lastActionTimestamp = clock.currentTimeMillis();
     }
 
     // End idle-activity related methods
@@ -758,6 +877,8 @@ public abstract class Nounours {
      * having been hidden.
      */
     public void onResume() {
+        if (inputListener != null)
+            inputListener.onResume();
         resetIdle();
         if (curTheme.getResumeAnimation() != null)
             doAnimation(curTheme.getResumeAnimation());
@@ -772,6 +893,13 @@ public abstract class Nounours {
         return vibrateInterval;
     }
 
+    /**
+     * @return the time in milliseconds between two checks for idleness.
+     */
+    long getPingInterval() {
+        return pingInterval;
+    }
+
     /**
      * @param propertyName
      *            the name of the property to retrieve
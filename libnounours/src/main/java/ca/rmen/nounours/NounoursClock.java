@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.concurrent.Future;
+
+/**
+ * The source of time of a {@link Nounours}. The idle timer, the recorder, the
+ * random animations and the animation driver use this clock rather than the
+ * system clock, and schedule their work on it, so that sessions can be run in
+ * virtual time, much faster than real time.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface NounoursClock {
+
+    /**
+     * The system clock. Tasks are run on one background thread, shared by all
+     * the users of this instance. A {@link Nounours} doesn't use it: it has its
+     * own system clock, unless it's given another clock.
+     */
+    public static final NounoursClock SYSTEM_CLOCK = new SystemClock();
+
+    /**
+     * @return the current time, in milliseconds since the epoch.
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * @return the current time in nanoseconds, only meaningful compared to
+     *         another value returned by this method.
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Run a task once the given delay has elapsed on this clock. Tasks should
+     * be short, since they may delay the other tasks of the clock. A task
+     * should handle its own errors: the clock only logs them.
+     *
+     * @param task
+     *            the task to run.
+     * @param delayMillis
+     *            the delay, in milliseconds, from now.
+     * @return can be used to cancel the task.
+     */
+    public abstract Future<?> schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+/**
+ * Implementing classes turn the vibration of the device on and off. Unlike a
+ * {@link NounoursVibrateHandler}, they have no timing logic: all the
+ * vibrations are scheduled by one {@link HapticScheduler}. A vibrate handler
+ * which also implements this interface is driven by the scheduler.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface NounoursHapticHandler {
+
+    /**
+     * Called from the thread of the haptic scheduler, each time the
+     * vibration starts or stops.
+     *
+     * @param vibrating
+     *            true if the device should vibrate until the next call.
+     */
+    public abstract void setVibrating(boolean vibrating);
+}
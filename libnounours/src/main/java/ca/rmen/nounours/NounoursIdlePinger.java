@@ -19,7 +19,8 @@
 package ca.rmen.nounours;
 
 /**
- * This thread pings nounours every second.
+ * This task pings nounours periodically, on the clock of the nounours. Each
+ * run pings once and schedules the next run.
  *
  * @author Carmen Alvarez
  *
@@ -28,7 +29,8 @@ class NounoursIdlePinger implements Runnable {
 
     private Nounours nounours = null;
     private long pingInterval = 5000;
-    private boolean doPing = true;
+    private volatile boolean doPing = true;
+    private volatile boolean isStopped = false;
 
     /**
      * @param nounours The Nounours to ping periodically.
@@ -43,22 +45,28 @@ class NounoursIdlePinger implements Runnable {
     }
 
     /**
-     * Ping nounours periodically.
+     * Stop pinging: the next run won't be scheduled.
+     */
+    public void stop() {
+        isStopped = true;
+    }
+
+    /**
+     * Ping nounours, and schedule the next ping.
      */
     @Override
     public void run() {
-        //noinspection InfiniteLoopStatement
-        while (true) {
+        if (isStopped)
+            return;
+        try {
             if (doPing) {
                 nounours.ping();
             }
-            try
-
-            {
-                Thread.sleep(pingInterval);
-            } catch (final InterruptedException e) {
-                // Do nothing
-            }
+        } catch (RuntimeException e) {
+            nounours.debug(e);
+        } finally {
+            if (!isStopped)
+                nounours.getClock().schedule(this, pingInterval);
         }
     }
 }
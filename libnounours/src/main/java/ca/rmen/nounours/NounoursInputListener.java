@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+/**
+ * Implementing classes are notified of the user input received by a
+ * {@link Nounours}, before it is handled. Used to record input traces, which
+ * can be replayed later.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface NounoursInputListener {
+
+    /**
+     * @see Nounours#onPress(int, int)
+     */
+    public abstract void onPress(int x, int y);
+
+    /**
+     * @see Nounours#onMove(int, int)
+     */
+    public abstract void onMove(int x, int y);
+
+    /**
+     * @see Nounours#onRelease()
+     */
+    public abstract void onRelease();
+
+    /**
+     * @see Nounours#onFling(int, int, float, float)
+     */
+    public abstract void onFling(int x, int y, float velX, float velY);
+
+    /**
+     * @see Nounours#onShake()
+     */
+    public abstract void onShake();
+
+    /**
+     * @see Nounours#onResume()
+     */
+    public abstract void onResume();
+}
@@ -19,103 +19,416 @@
 package ca.rmen.nounours;
 
 import ca.rmen.nounours.data.Animation;
-import ca.rmen.nounours.data.AnimationImage;
 import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.RecordedAnimation;
+import ca.rmen.nounours.io.FileRecordingStore;
+import ca.rmen.nounours.io.MemoryRecordingStore;
+import ca.rmen.nounours.io.RecordingStore;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Records an animation.
+ * Records an animation. The recording is stored as compact records in a
+ * {@link RecordingStore}: in memory, or, in streaming mode, in a file, so that
+ * the memory used by a long recording stays constant.
+ *
+ * The recording is compressed: an animation played during the recording is
+ * stored as one reference record to the animation, rather than as its frames,
+ * and consecutive frames of the same image, or repetitions of the same
+ * animation, are merged into one record.
+ *
+ * Images, animations, pauses and resumes may be recorded from any thread.
+ * They are added as events, with their timestamp, to a lock-free
+ * {@link RecorderEventBuffer}, and a single consumer builds the recording from
+ * the events: a background thread while recording, and the thread which
+ * stops the recording. No event is lost: if the buffer is full, the thread
+ * which adds an event takes the pending events itself.
+ *
+ * The image and animation tables are cleared when a recording starts or
+ * stops, so each event has the generation of the recording it was added to,
+ * and the events of an older recording, whose indexes refer to cleared
+ * tables, are dropped.
  *
  * @author Carmen Alvarez
  */
 public class NounoursRecorder {
+    private static final int EVENT_IMAGE = 0;
+    private static final int EVENT_ANIMATION = 1;
+    private static final int EVENT_PAUSE = 2;
+    private static final int EVENT_RESUME = 3;
+    private static final int EVENT_BUFFER_CAPACITY = 4096;
+    private static final long DRAIN_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Wake the consumer up each time this many events have been added, so
+    // that a burst of events doesn't fill the buffer between two drains.
+    private static final int WAKE_UP_EVENT_COUNT = EVENT_BUFFER_CAPACITY / 4;
+
+    private final RecorderEventBuffer events = new RecorderEventBuffer(EVENT_BUFFER_CAPACITY);
+    private volatile boolean recording = false;
+    private volatile boolean paused = false;
+    private volatile Thread drainThread;
+    // Incremented, under consumerLock, each time a recording starts, once the
+    // tables are cleared.
+    private volatile int generation = 0;
+    private volatile NounoursClock clock = NounoursClock.SYSTEM_CLOCK;
+
+    // The images of the recording, by image index, and the index of each image
+    // id. Producers add an image the first time they record it.
+    private final List<Image> images = new CopyOnWriteArrayList<Image>();
+    private final Map<String, Integer> imageIndexes = new ConcurrentHashMap<String, Integer>();
+    // The animations of the recording, by animation index, and the index of
+    // each animation id.
+    private final List<Animation> animations = new CopyOnWriteArrayList<Animation>();
+    private final Map<String, Integer> animationIndexes = new ConcurrentHashMap<String, Integer>();
+
+    // The state of the recording, only used by the consumer, which holds this
+    // lock.
+    private final Object consumerLock = new Object();
     private long lastFrameTimestamp;
     private long lastPauseTimestamp;
     private long lastResumeTimestamp;
-    private Image lastImage;
-    private Animation animation;
+    private long lastEventTimestamp;
+    // The image displayed since lastFrameTimestamp, or -1.
+    private int lastImageIndex = -1;
+    private String animationId;
+    private String animationLabel;
+    private RecordingStore store;
+    // The last record, which isn't in the store yet, so that it can be merged
+    // with the next one. The index is -1 if there's no such record.
+    private int pendingIndex = -1;
+    private int pendingDuration;
+    private int pendingRepeat;
+    private int frameCount;
+    private long duration;
+    // The first error while storing a record. The records after it are
+    // ignored, and stop() reports it.
+    private IOException failure;
 
     private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
 
+    private final RecorderEventBuffer.EventHandler eventHandler = new RecorderEventBuffer.EventHandler() {
+        @Override
+        public void onEvent(long timestamp, int eventGeneration, int index, int kind) {
+            // The index of an event of an older recording may not be in the
+            // tables anymore.
+            if (eventGeneration == generation)
+                handleEvent(timestamp, index, kind);
+        }
+    };
+
+    private static final RecorderEventBuffer.EventHandler IGNORE_EVENTS = new RecorderEventBuffer.EventHandler() {
+        @Override
+        public void onEvent(long timestamp, int eventGeneration, int index, int kind) {
+            // Ignore the event.
+        }
+    };
+
     private void init() {
         lastFrameTimestamp = 0;
         lastPauseTimestamp = 0;
         lastResumeTimestamp = 0;
-        lastImage = null;
-        animation = null;
+        lastEventTimestamp = 0;
+        lastImageIndex = -1;
+        animationId = null;
+        animationLabel = null;
+        store = null;
+        clearTable(images, imageIndexes);
+        clearTable(animations, animationIndexes);
+        pendingIndex = -1;
+        pendingDuration = 0;
+        pendingRepeat = 0;
+        frameCount = 0;
+        duration = 0;
+        failure = null;
     }
 
+    /**
+     * Start recording in memory.
+     */
     @SuppressWarnings("UnusedDeclaration")
     public void start() {
-        if (lastFrameTimestamp > 0) throw new IllegalStateException("Already recording");
-        long now = System.currentTimeMillis();
-        lastFrameTimestamp = now;
-        animation = new Animation(
-                "nounours-recording-" + now,
-                "Nounours Recording" + simpleDateFormat.format(now),
-                1000, 1, false,
-                false, null);
+        start(new MemoryRecordingStore());
+    }
+
+    /**
+     * Start recording in streaming mode: the frames are written to the given
+     * file as they are recorded.
+     *
+     * @param file
+     *            the file of the recording. Its previous content is erased.
+     * @throws IOException
+     *             if the file could not be opened.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void start(File file) throws IOException {
+        if (recording) throw new IllegalStateException("Already recording");
+        start(new FileRecordingStore(file));
+    }
+
+    private void start(RecordingStore recordingStore) {
+        synchronized (consumerLock) {
+            if (recording) throw new IllegalStateException("Already recording");
+            // Forget any event which arrived after the last recording stopped.
+            events.drain(IGNORE_EVENTS);
+            init();
+            generation++;
+            long now = clock.currentTimeMillis();
+            lastFrameTimestamp = now;
+            lastEventTimestamp = now;
+            animationId = "nounours-recording-" + now;
+            animationLabel = "Nounours Recording" + simpleDateFormat.format(now);
+            store = recordingStore;
+            paused = false;
+            recording = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (recording) {
+                    drainEvents();
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+                }
+            }
+        }, "NounoursRecorder");
+        thread.setDaemon(true);
+        drainThread = thread;
+        thread.start();
+    }
+
+    /**
+     * @param clock
+     *            the source of the timestamps of the recorded frames.
+     */
+    void setClock(NounoursClock clock) {
+        this.clock = clock;
     }
 
     public boolean isRecording() {
-        return lastFrameTimestamp > 0;
+        return recording;
     }
 
     @SuppressWarnings("WeakerAccess")
     public boolean isPaused() {
-        return lastPauseTimestamp > 0 && lastResumeTimestamp == 0;
+        return paused;
     }
 
     @SuppressWarnings("UnusedDeclaration")
     public void pause() {
         if (!isRecording()) throw new IllegalStateException("Not recording");
         if (isPaused()) throw new IllegalStateException("Already paused");
-        lastPauseTimestamp = System.currentTimeMillis();
+        paused = true;
+        addEvent(generation, 0, EVENT_PAUSE);
     }
 
     @SuppressWarnings("UnusedDeclaration")
     public void resume() {
         if (!isRecording()) throw new IllegalStateException("Not recording");
         if (!isPaused()) throw new IllegalStateException("Not paused");
-        lastResumeTimestamp = System.currentTimeMillis();
+        paused = false;
+        addEvent(generation, 0, EVENT_RESUME);
     }
 
     public void addImage(Image image) {
         if (!isRecording()) throw new IllegalStateException("Not recording");
         if (isPaused()) throw new IllegalStateException("Paused");
-        // If this is the same as the last image we added, do nothing.
-        if (lastImage != null && image.getId().equals(lastImage.getId())) return;
-       
-        addLastImage();
-        lastImage = image;
+        // Read the generation before the index: if the tables are cleared in
+        // between, the event is dropped.
+        int eventGeneration = generation;
+        addEvent(eventGeneration, getIndex(image.getId(), image, images, imageIndexes), EVENT_IMAGE);
     }
 
     public void addImages(Animation animationToAdd) {
-        lastFrameTimestamp = System.currentTimeMillis();
-        List<AnimationImage> frames = animationToAdd.getImages();
-        for (int i = 0; i < animationToAdd.getRepeat(); i++) {
-            for (AnimationImage frame : frames) {
-                float frameDuration = animationToAdd.getInterval() * frame.getDuration();
-                animation.addImage(frame.getImage(), frameDuration / 1000);
+        int eventGeneration = generation;
+        addEvent(eventGeneration, getIndex(animationToAdd.getId(), animationToAdd, animations, animationIndexes),
+                EVENT_ANIMATION);
+    }
+
+    private void addEvent(int eventGeneration, int index, int kind) {
+        long timestamp = clock.currentTimeMillis();
+        long position;
+        while ((position = events.offer(timestamp, eventGeneration, index, kind)) < 0) {
+            // The buffer is full: take the pending events in this thread,
+            // rather than losing this one.
+            if (!recording)
+                return;
+            if (drainEvents() == 0)
+                Thread.yield();
+        }
+        if (position % WAKE_UP_EVENT_COUNT == WAKE_UP_EVENT_COUNT - 1) {
+            Thread thread = drainThread;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the index of the item in the table, adding the item to the table
+     *         the first time.
+     */
+    private static <T> int getIndex(String id, T item, List<T> items, Map<String, Integer> indexes) {
+        Integer index = indexes.get(id);
+        if (index != null)
+            return index;
+        synchronized (items) {
+            index = indexes.get(id);
+            if (index == null) {
+                // Add the item before its index, so the item is there for
+                // whoever sees the index.
+                index = items.size();
+                items.add(item);
+                indexes.put(id, index);
             }
+            return index;
+        }
+    }
+
+    /**
+     * Empty a table, under the lock which {@link #getIndex} holds to add to
+     * it, so that an item is never added at an index of the table before it
+     * was cleared.
+     */
+    private static <T> void clearTable(List<T> items, Map<String, Integer> indexes) {
+        synchronized (items) {
+            items.clear();
+            indexes.clear();
         }
-        lastFrameTimestamp = lastFrameTimestamp + animationToAdd.getDuration();
-        lastImage = null;
     }
 
+    /**
+     * @return the recorded animation. In streaming mode, the frames are read
+     *         from the file, until the animation is closed.
+     * @throws IllegalStateException
+     *             if we're not recording, or if a frame could not be stored.
+     *             In the latter case, the cause is the IOException of the
+     *             store, and the recording is discarded.
+     */
     @SuppressWarnings("UnusedDeclaration")
-    public Animation stop() {
-        if (!isRecording()) throw new IllegalStateException("Not recording");
-        addLastImage();
-        Animation result = animation;
-        init();
-        return result;
+    public RecordedAnimation stop() {
+        synchronized (consumerLock) {
+            if (!isRecording()) throw new IllegalStateException("Not recording");
+            recording = false;
+            drainThread = null;
+            events.drain(eventHandler);
+            addLastImage(Math.max(clock.currentTimeMillis(), lastEventTimestamp));
+            flushPendingRecord();
+            IOException error = failure;
+            RecordingStore recordingStore = store;
+            RecordedAnimation result = new RecordedAnimation(animationId, animationLabel, store, images,
+                    animations, frameCount, duration);
+            init();
+            if (error != null) {
+                try {
+                    recordingStore.close();
+                } catch (IOException e) {
+                    // We're already reporting the first error.
+                }
+                throw new IllegalStateException("Could not record frame", error);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the number of events taken from the buffer.
+     */
+    private int drainEvents() {
+        synchronized (consumerLock) {
+            if (recording)
+                return events.drain(eventHandler);
+            return 0;
+        }
+    }
+
+    /**
+     * Update the recording with an event. Events from different threads may
+     * be slightly out of order, so the timestamps are made monotonic.
+     */
+    private void handleEvent(long timestamp, int index, int kind) {
+        timestamp = Math.max(timestamp, lastEventTimestamp);
+        lastEventTimestamp = timestamp;
+        switch (kind) {
+        case EVENT_IMAGE:
+            // If this is the same as the last image we added, do nothing.
+            if (index == lastImageIndex) return;
+            addLastImage(timestamp);
+            lastImageIndex = index;
+            break;
+        case EVENT_ANIMATION:
+            Animation animationToAdd = animations.get(index);
+            lastFrameTimestamp = timestamp;
+            appendReference(index, animationToAdd);
+            lastFrameTimestamp = lastFrameTimestamp + animationToAdd.getDuration();
+            lastImageIndex = -1;
+            break;
+        case EVENT_PAUSE:
+            lastPauseTimestamp = timestamp;
+            lastResumeTimestamp = 0;
+            break;
+        case EVENT_RESUME:
+            lastResumeTimestamp = timestamp;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Record a frame, merging it with the previous frame if it has the same
+     * image.
+     */
+    private void append(int imageIndex, int frameDuration) {
+        duration += frameDuration;
+        if (pendingIndex == imageIndex && pendingRepeat == 0) {
+            pendingDuration += frameDuration;
+            return;
+        }
+        flushPendingRecord();
+        frameCount++;
+        pendingIndex = imageIndex;
+        pendingDuration = frameDuration;
+        pendingRepeat = 0;
+    }
+
+    /**
+     * Record a reference to an animation, merging it with the previous record
+     * if it's the same animation at the same interval.
+     */
+    private void appendReference(int animationIndex, Animation animation) {
+        duration += animation.getDuration();
+        frameCount += animation.getImages().size() * animation.getRepeat();
+        if (pendingIndex == animationIndex && pendingRepeat > 0 && pendingDuration == animation.getInterval()) {
+            pendingRepeat += animation.getRepeat();
+            return;
+        }
+        flushPendingRecord();
+        pendingIndex = animationIndex;
+        pendingDuration = animation.getInterval();
+        pendingRepeat = animation.getRepeat();
+    }
+
+    private void flushPendingRecord() {
+        if (pendingIndex < 0)
+            return;
+        // This may run on the drain thread, so keep the error for stop(),
+        // rather than throwing it there.
+        if (failure == null) {
+            try {
+                store.append(pendingIndex, pendingDuration, pendingRepeat);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        pendingIndex = -1;
     }
 
-    private void addLastImage() {
-        long now = System.currentTimeMillis();
+    private void addLastImage(long now) {
         long lastFrameDuration = now - lastFrameTimestamp;
         if (lastResumeTimestamp > 0) {
             long lastPauseDuration = lastResumeTimestamp - lastPauseTimestamp;
@@ -124,9 +437,8 @@ public class NounoursRecorder {
             lastResumeTimestamp = 0;
         }
 
-        if (lastImage != null) {
-            float lastRelativeFrameDuration = (float) lastFrameDuration / 1000;
-            animation.addImage(lastImage, lastRelativeFrameDuration);
+        if (lastImageIndex >= 0) {
+            append(lastImageIndex, (int) lastFrameDuration);
         }
 
         lastFrameTimestamp = now;
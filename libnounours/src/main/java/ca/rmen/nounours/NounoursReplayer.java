@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import ca.rmen.nounours.io.InputTraceReader;
+
+import java.io.IOException;
+
+/**
+ * Replays an input trace into a {@link Nounours}, in virtual time: as fast as
+ * possible, or at a multiple of real time.
+ *
+ * The nounours must use the virtual clock of the replayer. Before the replay,
+ * its random generator is seeded with the seed of the recorded session, and
+ * its idle pinger is turned off: the replayer pings the nounours itself, at
+ * the virtual times the pinger would have. If the nounours runs its tasks
+ * synchronously, each replay of a trace produces the same frames.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class NounoursReplayer {
+
+    private final Nounours nounours;
+    private final VirtualClock clock;
+
+    /**
+     * @param nounours
+     *            the nounours, which has been initialized with the given clock.
+     * @param clock
+     *            the clock of the nounours.
+     */
+    public NounoursReplayer(Nounours nounours, VirtualClock clock) {
+        this.nounours = nounours;
+        this.clock = clock;
+    }
+
+    /**
+     * Replay the trace. This returns when the end of the trace is reached.
+     *
+     * @param trace
+     *            the input trace to replay.
+     * @param speed
+     *            how many times faster than real time the trace is replayed,
+     *            or 0 to replay it as fast as possible.
+     * @return the number of events replayed.
+     * @throws IOException
+     *             if the trace could not be read.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the next
+     *             event.
+     */
+    public int replay(InputTraceReader trace, float speed) throws IOException, InterruptedException {
+        long before = System.currentTimeMillis();
+        nounours.doPing(false);
+        nounours.setRandomSeed(trace.getRandomSeed());
+        clock.setTime(trace.getStartTime());
+        nounours.reset();
+        long pingInterval = nounours.getPingInterval();
+        long nextPing = trace.getStartTime() + pingInterval;
+        int eventCount = 0;
+        boolean hasEvent;
+        do {
+            hasEvent = trace.next();
+            long eventTime = trace.getTimestamp();
+            // Ping the nounours as often as the pinger would have before this
+            // event.
+            while (nextPing <= eventTime) {
+                advanceTo(nextPing, speed);
+                nounours.ping();
+                nextPing += pingInterval;
+            }
+            advanceTo(eventTime, speed);
+            if (hasEvent) {
+                trace.dispatch(nounours);
+                eventCount++;
+            }
+        } while (hasEvent);
+        System.out.println(getClass().getName() + ": Replayed " + eventCount + " events over "
+                + (trace.getTimestamp() - trace.getStartTime()) + "ms in " + (System.currentTimeMillis() - before)
+                + "ms");
+        return eventCount;
+    }
+
+    private void advanceTo(long time, float speed) throws InterruptedException {
+        if (speed > 0) {
+            long wait = (long) ((time - clock.currentTimeMillis()) / speed);
+            if (wait > 0)
+                Thread.sleep(wait);
+        }
+        clock.advanceTo(time);
+    }
+}
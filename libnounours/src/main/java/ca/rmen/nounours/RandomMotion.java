@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Plays a random motion of a nounours: a short walk in the graph of adjacent
+ * images, chosen by a {@link RandomMotionGenerator}. The frames are chosen
+ * as they are displayed, and each frame is a run of this task on the clock of
+ * the nounours, so a motion doesn't build an animation. One instance plays
+ * all the random motions of a nounours.
+ *
+ * Each frame is scheduled as this same task, so a frame allocates nothing
+ * but the future which the clock returns for it. The frames have random
+ * durations, which a periodic task can't follow, and the clock only runs
+ * one-shot tasks, so that a virtual clock can run them too.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class RandomMotion implements Runnable {
+
+    private final Nounours nounours;
+    private RandomMotionGenerator generator = null;
+    private Random random = null;
+    private int imageIndex = -1;
+    private int interval;
+    private int remainingFrameCount = 0;
+    private Future<?> nextFrame = null;
+
+    RandomMotion(Nounours nounours) {
+        this.nounours = nounours;
+    }
+
+    /**
+     * Start a new motion from the given image, stopping the current one.
+     *
+     * @param motionGenerator
+     *            chooses the images of the motion.
+     * @param random
+     *            the random generator of the nounours.
+     * @param fromImage
+     *            the current image.
+     */
+    synchronized void start(RandomMotionGenerator motionGenerator, Random random, int fromImage) {
+        stop();
+        this.generator = motionGenerator;
+        this.random = random;
+        imageIndex = fromImage;
+        interval = 100 + random.nextInt(400);
+        remainingFrameCount = 2 + random.nextInt(8);
+        if (imageIndex >= 0)
+            nextFrame = nounours.getClock().schedule(this, 0);
+    }
+
+    synchronized void stop() {
+        remainingFrameCount = 0;
+        if (nextFrame != null) {
+            nextFrame.cancel(false);
+            nextFrame = null;
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return nextFrame != null;
+    }
+
+    /**
+     * Show the next frame, and schedule the one after it.
+     */
+    @Override
+    public void run() {
+        int frameImage;
+        long frameDuration;
+        synchronized (this) {
+            if (remainingFrameCount == 0 || imageIndex < 0) {
+                nextFrame = null;
+                return;
+            }
+            frameImage = imageIndex;
+            frameDuration = (long) (interval * (0.5f + random.nextFloat() * 2.0f));
+            imageIndex = generator.nextImage(imageIndex, random);
+            remainingFrameCount--;
+            nextFrame = nounours.getClock().schedule(this, frameDuration);
+        }
+        try {
+            nounours.showMotionFrame(generator.getImage(frameImage));
+        } catch (RuntimeException e) {
+            nounours.debug(e);
+            stop();
+        }
+    }
+}
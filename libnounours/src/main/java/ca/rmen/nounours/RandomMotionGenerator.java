@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ca.rmen.nounours.data.Feature;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageFeature;
+
+/**
+ * Walks the graph of adjacent images at random, for the random motions of an
+ * idle nounours. The transitions of each image are computed once: the indexes
+ * of the images it may transition to, and the cumulative weights of these
+ * transitions. Choosing the next image is then a binary search in arrays,
+ * without allocating anything.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class RandomMotionGenerator {
+
+    /**
+     * Gives the relative probability of a transition from one image to an
+     * adjacent image.
+     */
+    public interface TransitionWeight {
+        /**
+         * @return the weight of the transition, 0 if the transition should
+         *         never be chosen.
+         */
+        public float getWeight(Image from, Image to);
+    }
+
+    /**
+     * All the transitions have the same weight. An image adjacent through
+     * several features is as likely as that many transitions.
+     */
+    public static final TransitionWeight UNIFORM = new TransitionWeight() {
+        @Override
+        public float getWeight(Image from, Image to) {
+            return 1;
+        }
+    };
+
+    /**
+     * Favor small pose changes: the weight of a transition is the inverse of
+     * one plus the distance, in pixels, by which the features of the first
+     * image move in the second image.
+     */
+    public static final TransitionWeight SMALL_POSE_CHANGES = new TransitionWeight() {
+        @Override
+        public float getWeight(Image from, Image to) {
+            int displacement = 0;
+            for (Feature feature : from.getFeatures()) {
+                ImageFeature fromFeature = from.getImageFeature(feature.getId());
+                ImageFeature toFeature = to.getImageFeature(feature.getId());
+                if (fromFeature != null && toFeature != null)
+                    displacement += Util.getDistance(fromFeature.getX(), fromFeature.getY(), toFeature.getX(),
+                            toFeature.getY());
+            }
+            return 1f / (1 + displacement);
+        }
+    };
+
+    private final Image[] images;
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+    // For each image index, the indexes of the images it may transition to,
+    // and the weight of each transition plus the weights of the transitions
+    // before it.
+    private final int[][] transitions;
+    private final float[][] cumulativeWeights;
+
+    /**
+     * @param themeImages
+     *            the images of a theme.
+     * @param transitionWeight
+     *            the weight of each transition between adjacent images.
+     */
+    public RandomMotionGenerator(Collection<Image> themeImages, TransitionWeight transitionWeight) {
+        images = themeImages.toArray(new Image[themeImages.size()]);
+        for (int i = 0; i < images.length; i++)
+            indexes.put(images[i].getId(), i);
+        transitions = new int[images.length][];
+        cumulativeWeights = new float[images.length][];
+        int transitionCount = 0;
+        for (int i = 0; i < images.length; i++) {
+            List<Image> adjacentImages = images[i].getAllAdjacentImages();
+            int[] imageTransitions = new int[adjacentImages.size()];
+            float[] imageWeights = new float[adjacentImages.size()];
+            int count = 0;
+            float totalWeight = 0;
+            for (Image adjacentImage : adjacentImages) {
+                Integer index = indexes.get(adjacentImage.getId());
+                if (index == null)
+                    continue;
+                float weight = transitionWeight.getWeight(images[i], adjacentImage);
+                if (!(weight > 0))
+                    continue;
+                totalWeight += weight;
+                imageTransitions[count] = index;
+                imageWeights[count] = totalWeight;
+                count++;
+            }
+            transitions[i] = Arrays.copyOf(imageTransitions, count);
+            cumulativeWeights[i] = Arrays.copyOf(imageWeights, count);
+            transitionCount += count;
+        }
+        System.out.println(getClass().getName() + ": " + transitionCount + " transitions between " + images.length
+                + " images");
+    }
+
+    /**
+     * @return the index of the image, to pass to {@link #nextImage(int, Random)},
+     *         or -1 if it's not an image of the theme.
+     */
+    public int getIndex(Image image) {
+        if (image == null)
+            return -1;
+        Integer index = indexes.get(image.getId());
+        return index == null ? -1 : index;
+    }
+
+    public Image getImage(int index) {
+        return images[index];
+    }
+
+    /**
+     * Choose the next image of a random motion.
+     *
+     * @param index
+     *            the index of the current image.
+     * @param random
+     *            the random generator to use.
+     * @return the index of the next image, or -1 if the current image has no
+     *         transitions.
+     */
+    public int nextImage(int index, Random random) {
+        float[] weights = cumulativeWeights[index];
+        if (weights.length == 0)
+            return -1;
+        float value = random.nextFloat() * weights[weights.length - 1];
+        // Find the first transition whose cumulative weight is above the
+        // value.
+        int low = 0;
+        int high = weights.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (weights[middle] > value)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return transitions[index][low];
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of recorder events, for any number of producer
+ * threads and one consumer. Each event is a record of primitives: a
+ * timestamp, a generation, an index and a kind, stored in parallel arrays, so
+ * adding an event allocates nothing.
+ *
+ * Each slot has a sequence number, which tells whether the slot is free for
+ * the producer of a given position, or holds the event of a given position
+ * for the consumer. A producer claims a position with a compare-and-set on
+ * the tail, writes the event, and then publishes it by setting the sequence
+ * of its slot.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class RecorderEventBuffer {
+
+    /**
+     * Receives the events taken from the buffer.
+     */
+    interface EventHandler {
+        void onEvent(long timestamp, int generation, int index, int kind);
+    }
+
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] generations;
+    private final int[] indexes;
+    private final int[] kinds;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only used by the consumer.
+    private long head = 0;
+
+    /**
+     * @param capacity
+     *            the maximum number of events in the buffer. Must be a power
+     *            of 2.
+     */
+    RecorderEventBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("The capacity must be a power of 2: " + capacity);
+        mask = capacity - 1;
+        timestamps = new long[capacity];
+        generations = new int[capacity];
+        indexes = new int[capacity];
+        kinds = new int[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Add an event. This may be called from any thread.
+     *
+     * @return the position of the event in the buffer, or -1 if the buffer is
+     *         full, in which case the event wasn't added: the caller must let
+     *         the consumer take events, and try again.
+     */
+    long offer(long timestamp, int generation, int index, int kind) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long available = sequences.get(slot) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (available < 0) {
+                // The consumer hasn't taken the event of this slot yet.
+                return -1;
+            }
+            // Another producer claimed this position: try the next one.
+        }
+        timestamps[slot] = timestamp;
+        generations[slot] = generation;
+        indexes[slot] = index;
+        kinds[slot] = kind;
+        // Publish the event to the consumer.
+        sequences.lazySet(slot, position + 1);
+        return position;
+    }
+
+    /**
+     * Take all the events which have been published, in order. This must only
+     * be called by one thread at a time.
+     *
+     * @return the number of events taken.
+     */
+    int drain(EventHandler handler) {
+        int count = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1)
+                return count;
+            long timestamp = timestamps[slot];
+            int generation = generations[slot];
+            int index = indexes[slot];
+            int kind = kinds[slot];
+            // Free the slot for the producer of the position one lap later.
+            sequences.lazySet(slot, head + mask + 1);
+            head++;
+            count++;
+            handler.onEvent(timestamp, generation, index, kind);
+        }
+    }
+}
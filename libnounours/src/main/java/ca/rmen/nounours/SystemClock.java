@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The real time clock. Tasks are run on one daemon thread, created the first
+ * time a task is scheduled. The tasks are scheduled as they are, without a
+ * wrapper, so scheduling a task only allocates its future: the errors of the
+ * tasks are logged once they have run.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class SystemClock implements NounoursClock {
+
+    private ScheduledExecutorService timer = null;
+    private boolean isShutdown = false;
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayMillis) {
+        return getTimer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the scheduled tasks and stop the thread of this clock. Tasks can't
+     * be scheduled on this clock after this.
+     */
+    synchronized void shutdown() {
+        isShutdown = true;
+        if (timer != null)
+            timer.shutdownNow();
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (isShutdown)
+            throw new RejectedExecutionException("The clock was shut down");
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "NounoursClock");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }) {
+                /**
+                 * The future of a task keeps its error, rather than letting
+                 * it stop the timer: log it.
+                 */
+                @Override
+                protected void afterExecute(Runnable runnable, Throwable throwable) {
+                    super.afterExecute(runnable, throwable);
+                    if (!(runnable instanceof Future<?>) || !((Future<?>) runnable).isDone())
+                        return;
+                    try {
+                        ((Future<?>) runnable).get();
+                    } catch (ExecutionException e) {
+                        System.out.println(getClass().getName() + ": Error running a task: " + e.getCause());
+                        e.getCause().printStackTrace();
+                    } catch (CancellationException e) {
+                        // The task was cancelled.
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+        return timer;
+    }
+}
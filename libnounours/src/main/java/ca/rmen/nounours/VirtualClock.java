@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A clock which only moves when it is told to. Tasks scheduled on this clock
+ * are run by the thread which moves the clock, when the clock reaches their
+ * time, in the order of their times, and for tasks with the same time, in the
+ * order in which they were scheduled. Before each task runs, the clock is set
+ * to the time of the task.
+ *
+ * A simulation moves the clock forward as fast as it can run the tasks: a day
+ * of idle behaviour only takes as long as the pings and animation frames of
+ * that day take to run. If the tasks of the nounours run synchronously, the
+ * simulation is deterministic.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class VirtualClock implements NounoursClock {
+
+    private volatile long time;
+    private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<ScheduledTask>();
+    private long taskCount = 0;
+
+    /**
+     * @param time
+     *            the initial time, in milliseconds since the epoch.
+     */
+    public VirtualClock(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return time;
+    }
+
+    @Override
+    public long nanoTime() {
+        return time * 1000000;
+    }
+
+    @Override
+    public Future<?> schedule(final Runnable task, long delayMillis) {
+        FutureTask<Object> futureTask = new FutureTask<Object>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Don't let one task stop the simulation.
+                    System.out.println(getClass().getName() + ": Error running " + task + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        }, null);
+        synchronized (tasks) {
+            tasks.add(new ScheduledTask(time + Math.max(0, delayMillis), taskCount++, futureTask));
+        }
+        return futureTask;
+    }
+
+    /**
+     * Move the clock forward to the given time, running the tasks scheduled
+     * until then, including the tasks which they schedule. The clock never
+     * goes back.
+     *
+     * @param time
+     *            the new time, in milliseconds since the epoch.
+     */
+    public void advanceTo(long time) {
+        while (true) {
+            ScheduledTask next;
+            synchronized (tasks) {
+                next = tasks.peek();
+                if (next == null || next.time > time)
+                    break;
+                tasks.poll();
+                if (next.time > this.time)
+                    this.time = next.time;
+            }
+            // Does nothing if the task was cancelled.
+            next.task.run();
+        }
+        if (time > this.time)
+            this.time = time;
+    }
+
+    /**
+     * Move the clock forward by the given delay.
+     *
+     * @see #advanceTo(long)
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void advanceBy(long delayMillis) {
+        advanceTo(time + delayMillis);
+    }
+
+    /**
+     * Set the clock to the given time, even if it is earlier than the current
+     * time. Only use this before a replay starts. The tasks already scheduled
+     * keep their time.
+     *
+     * @param time
+     *            the new time, in milliseconds since the epoch.
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * @return the number of tasks waiting for their time, including the
+     *         cancelled tasks.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getPendingTaskCount() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long time;
+        private final long order;
+        private final FutureTask<Object> task;
+
+        ScheduledTask(long time, long order, FutureTask<Object> task) {
+            this.time = time;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return order < other.order ? -1 : order > other.order ? 1 : 0;
+        }
+    }
+}
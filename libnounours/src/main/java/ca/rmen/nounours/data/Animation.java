@@ -19,21 +19,30 @@
 package ca.rmen.nounours.data;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class represents a sequence of Images. The images are to be displayed at
  * a given interval, and the sequence may be repeated a given number of times.
  *
+ * An animation is serialized in the compact format of the
+ * {@link ca.rmen.nounours.io.AnimationCodec}.
+ *
  * @author Carmen Alvarez
  *
  */
 public class Animation implements Serializable {
+    // The implicit version of the class before it had a serialized form, so
+    // that animations serialized then can still be read.
+    private static final long serialVersionUID = 1814499690339864901L;
     private List<AnimationImage> images = new ArrayList<AnimationImage>();
     private String id = null;
     private String label = null;
@@ -144,21 +153,28 @@ public class Animation implements Serializable {
         return dup;
     }
 
-    private void writeObject(ObjectOutputStream out)
-            throws IOException {
-        out.writeObject(id);
-        out.writeObject(label);
-        out.writeInt(interval);
-        out.writeInt(repeat);
-        out.writeBoolean(visible);
-        out.writeBoolean(vibrate);
-        out.writeObject(soundId);
-        out.writeInt(images.size());
-        for (AnimationImage animationImage : images) {
-            writeAnimationImage(out, animationImage);
+    private Object writeReplace() throws ObjectStreamException {
+        return serializedForm(this);
+    }
+
+    /**
+     * @return the object written to the object stream in place of the given
+     *         animation.
+     */
+    static Object serializedForm(Animation animation) throws ObjectStreamException {
+        try {
+            return new SerializedAnimation(animation);
+        } catch (IOException e) {
+            InvalidObjectException exception = new InvalidObjectException("Could not encode animation");
+            exception.initCause(e);
+            throw exception;
         }
     }
 
+    /**
+     * Read an animation serialized before animations were serialized with the
+     * codec.
+     */
     private void readObject(ObjectInputStream in)
             throws IOException, ClassNotFoundException {
         id = (String) in.readObject();
@@ -170,31 +186,30 @@ public class Animation implements Serializable {
         soundId = (String) in.readObject();
         int size = in.readInt();
         images = new ArrayList<AnimationImage>();
+        // Share one image instance per image id.
+        Map<String, Image> imagesById = new HashMap<String, Image>();
         for (int i=0; i < size; i++) {
-            AnimationImage animationImage = readAnimationImage(in);
+            AnimationImage animationImage = readAnimationImage(in, imagesById);
             images.add(animationImage);
         }
     }
 
-    private void writeAnimationImage(ObjectOutputStream out, AnimationImage animationImage) throws IOException {
-        writeImage(out, animationImage.getImage());
-        out.writeFloat(animationImage.getDuration());
-    }
-
-    private void writeImage(ObjectOutputStream out, Image image) throws IOException {
-        out.writeObject(image.getId());
-        out.writeObject(image.getFilename());
-    }
-
-    private AnimationImage readAnimationImage(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        Image image = readImage(in);
+    private AnimationImage readAnimationImage(ObjectInputStream in, Map<String, Image> imagesById)
+            throws IOException, ClassNotFoundException {
+        Image image = readImage(in, imagesById);
         float duration = in.readFloat();
         return new AnimationImage(image, duration);
     }
 
-    private Image readImage(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    private Image readImage(ObjectInputStream in, Map<String, Image> imagesById)
+            throws IOException, ClassNotFoundException {
         String id = (String) in.readObject();
         String filename = (String) in.readObject();
-        return new Image(id, filename);
+        Image image = imagesById.get(id);
+        if (image == null) {
+            image = new Image(id, filename);
+            imagesById.put(id, image);
+        }
+        return image;
     }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The animations of a theme, indexed: a dense array in the order of the
+ * animation file, and the index of each animation id. The subsets used by the
+ * application, the visible animations, the animations launched by flings,
+ * and the special animations (shake, resume, idle, end of idle), are computed
+ * once.
+ *
+ * A random animation is chosen in constant time, either uniformly, or
+ * according to the weight of each animation, with the alias method: each
+ * animation has a slot, and each slot holds the probability of choosing its
+ * own animation, and another animation, its alias, chosen otherwise.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class AnimationRegistry {
+
+    private final Animation[] animations;
+    private final List<Animation> animationList;
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+    private final float[] weights;
+    private final List<Animation> visibleAnimations;
+    private final List<Animation> flingTargets;
+    private final List<Animation> specialAnimations;
+    // The alias table of the weighted random choice.
+    private final float[] aliasProbabilities;
+    private final int[] aliases;
+    private final boolean hasWeightedAnimation;
+
+    /**
+     * @param animations
+     *            the animations of the theme, in the order of the animation
+     *            file.
+     * @param weights
+     *            map of animation id to the weight of the animation in the
+     *            random choice. Animations which aren't in the map have a
+     *            weight of 1.
+     * @param flingAnimations
+     *            the fling animations of the theme.
+     * @param specialAnimations
+     *            the special animations of the theme. May contain nulls.
+     */
+    public AnimationRegistry(Collection<Animation> animations, Map<String, Float> weights,
+            Collection<FlingAnimation> flingAnimations, Collection<Animation> specialAnimations) {
+        this.animations = animations.toArray(new Animation[animations.size()]);
+        animationList = Collections.unmodifiableList(Arrays.asList(this.animations));
+        this.weights = new float[this.animations.length];
+        List<Animation> visible = new ArrayList<Animation>();
+        for (int i = 0; i < this.animations.length; i++) {
+            Animation animation = this.animations[i];
+            indexes.put(animation.getId(), i);
+            Float weight = weights.get(animation.getId());
+            this.weights[i] = weight == null ? 1 : Math.max(0, weight);
+            if (animation.isVisible())
+                visible.add(animation);
+        }
+        visibleAnimations = Collections.unmodifiableList(visible);
+
+        Set<Animation> targets = new LinkedHashSet<Animation>();
+        for (FlingAnimation flingAnimation : flingAnimations) {
+            Animation target = get(flingAnimation.getAnimationId());
+            if (target != null)
+                targets.add(target);
+        }
+        flingTargets = Collections.unmodifiableList(new ArrayList<Animation>(targets));
+
+        Set<Animation> special = new LinkedHashSet<Animation>();
+        for (Animation animation : specialAnimations) {
+            if (animation != null)
+                special.add(animation);
+        }
+        this.specialAnimations = Collections.unmodifiableList(new ArrayList<Animation>(special));
+
+        aliasProbabilities = new float[this.animations.length];
+        aliases = new int[this.animations.length];
+        hasWeightedAnimation = buildAliasTable();
+    }
+
+    /**
+     * Build the alias table of the weights (Vose's algorithm).
+     *
+     * @return false if no animation has a weight above 0.
+     */
+    private boolean buildAliasTable() {
+        int count = weights.length;
+        double totalWeight = 0;
+        for (float weight : weights)
+            totalWeight += weight;
+        if (totalWeight <= 0)
+            return false;
+        // The weights, scaled so that their mean is 1.
+        double[] scaledWeights = new double[count];
+        int[] small = new int[count];
+        int[] large = new int[count];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < count; i++) {
+            scaledWeights[i] = weights[i] * count / totalWeight;
+            if (scaledWeights[i] < 1)
+                small[smallCount++] = i;
+            else
+                large[largeCount++] = i;
+        }
+        // Fill each slot of a small weight with the excess of a large weight.
+        while (smallCount > 0 && largeCount > 0) {
+            int smallIndex = small[--smallCount];
+            int largeIndex = large[--largeCount];
+            aliasProbabilities[smallIndex] = (float) scaledWeights[smallIndex];
+            aliases[smallIndex] = largeIndex;
+            scaledWeights[largeIndex] = scaledWeights[largeIndex] + scaledWeights[smallIndex] - 1;
+            if (scaledWeights[largeIndex] < 1)
+                small[smallCount++] = largeIndex;
+            else
+                large[largeCount++] = largeIndex;
+        }
+        // What is left is 1, give or take rounding errors.
+        while (largeCount > 0)
+            aliasProbabilities[large[--largeCount]] = 1;
+        while (smallCount > 0)
+            aliasProbabilities[small[--smallCount]] = 1;
+        return true;
+    }
+
+    public int size() {
+        return animations.length;
+    }
+
+    /**
+     * @return the animation at the given index.
+     */
+    public Animation get(int index) {
+        return animations[index];
+    }
+
+    /**
+     * @return the animation with the given id, or null if there is none.
+     */
+    public Animation get(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? null : animations[index];
+    }
+
+    /**
+     * @return the index of the animation with the given id, or -1 if there is
+     *         none.
+     */
+    public int getIndex(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the weight of the animation at the given index.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public float getWeight(int index) {
+        return weights[index];
+    }
+
+    /**
+     * @return all the animations, in the order of the animation file.
+     */
+    public List<Animation> getAnimations() {
+        return animationList;
+    }
+
+    /**
+     * @return the animations which appear in the animations menu, in the order
+     *         of the animation file.
+     */
+    public List<Animation> getVisibleAnimations() {
+        return visibleAnimations;
+    }
+
+    /**
+     * @return the animations launched by fling animations.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public List<Animation> getFlingTargets() {
+        return flingTargets;
+    }
+
+    /**
+     * @return the shake, resume, idle and end of idle animations which the
+     *         theme has.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public List<Animation> getSpecialAnimations() {
+        return specialAnimations;
+    }
+
+    /**
+     * @return an animation chosen at random, all the animations having the
+     *         same probability, or null if there are no animations.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public Animation getRandomAnimation(Random random) {
+        if (animations.length == 0)
+            return null;
+        return animations[random.nextInt(animations.length)];
+    }
+
+    /**
+     * @return an animation chosen at random, with a probability proportional
+     *         to its weight, or null if no animation has a weight above 0.
+     */
+    public Animation getWeightedRandomAnimation(Random random) {
+        if (!hasWeightedAnimation)
+            return null;
+        int slot = random.nextInt(animations.length);
+        if (random.nextFloat() < aliasProbabilities[slot])
+            return animations[slot];
+        return animations[aliases[slot]];
+    }
+}
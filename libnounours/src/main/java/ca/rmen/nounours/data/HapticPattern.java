@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A vibration timeline: the intervals during which the device vibrates,
+ * relative to the start of the pattern. The intervals are sorted and don't
+ * overlap.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class HapticPattern {
+
+    // The start and end of each vibration, in milliseconds.
+    private final long[] starts;
+    private final long[] ends;
+
+    private HapticPattern(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * @param duration
+     *            in milliseconds
+     * @return a pattern which vibrates without interruption for the given
+     *         duration.
+     */
+    public static HapticPattern continuous(long duration) {
+        if (duration <= 0)
+            return new HapticPattern(new long[0], new long[0]);
+        return new HapticPattern(new long[] { 0 }, new long[] { duration });
+    }
+
+    /**
+     * @param duration
+     *            in milliseconds
+     * @param pulseLength
+     *            the length of each pulse, and of the pauses between them, in
+     *            milliseconds. If 0, the pattern is continuous.
+     * @return a pattern which vibrates in regular pulses for the given
+     *         duration.
+     */
+    public static HapticPattern pulses(long duration, long pulseLength) {
+        if (pulseLength <= 0)
+            return continuous(duration);
+        int pulseCount = (int) ((duration + 2 * pulseLength - 1) / (2 * pulseLength));
+        long[] starts = new long[pulseCount];
+        long[] ends = new long[pulseCount];
+        for (int i = 0; i < pulseCount; i++) {
+            starts[i] = 2 * i * pulseLength;
+            ends[i] = Math.min(starts[i] + pulseLength, duration);
+        }
+        return new HapticPattern(starts, ends);
+    }
+
+    /**
+     * Compile the vibration of an animation: pulses of the given length,
+     * separated by pauses of at least the same length, for the duration of
+     * the animation. Each pulse starts with a frame of the animation, so the
+     * vibration follows the rhythm of the images.
+     *
+     * @param animation
+     *            the animation which vibrates
+     * @param pulseLength
+     *            the length of each pulse, in milliseconds. If 0, the pattern
+     *            is continuous.
+     * @return the vibration pattern of the animation.
+     */
+    public static HapticPattern compile(Animation animation, long pulseLength) {
+        long duration = animation.getDuration();
+        if (pulseLength <= 0)
+            return continuous(duration);
+        // The start time of each frame, over all the repetitions.
+        List<Long> frameStarts = new ArrayList<Long>();
+        long frameStart = 0;
+        for (int i = 0; i < animation.getRepeat(); i++) {
+            for (AnimationImage image : animation.getImages()) {
+                frameStarts.add(frameStart);
+                frameStart += (long) (image.getDuration() * animation.getInterval());
+            }
+        }
+
+        List<Long> starts = new ArrayList<Long>();
+        List<Long> ends = new ArrayList<Long>();
+        int frame = 0;
+        long pulseStart = 0;
+        while (pulseStart < duration) {
+            starts.add(pulseStart);
+            ends.add(Math.min(pulseStart + pulseLength, duration));
+            // The next pulse starts with the first frame after the pause.
+            long earliestNextStart = pulseStart + 2 * pulseLength;
+            while (frame < frameStarts.size() && frameStarts.get(frame) < earliestNextStart)
+                frame++;
+            if (frame == frameStarts.size())
+                break;
+            pulseStart = frameStarts.get(frame);
+        }
+        return new HapticPattern(toArray(starts), toArray(ends));
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] result = new long[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+
+    /**
+     * @return the number of vibrations in the pattern.
+     */
+    public int getPulseCount() {
+        return starts.length;
+    }
+
+    /**
+     * @return the start time of the given vibration, in milliseconds from the
+     *         start of the pattern.
+     */
+    public long getStart(int pulse) {
+        return starts[pulse];
+    }
+
+    /**
+     * @return the end time of the given vibration, in milliseconds from the
+     *         start of the pattern.
+     */
+    public long getEnd(int pulse) {
+        return ends[pulse];
+    }
+
+    /**
+     * @return the end of the last vibration, in milliseconds.
+     */
+    public long getDuration() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < starts.length; i++)
+            result.append('[').append(starts[i]).append(',').append(ends[i]).append(')');
+        return result.toString();
+    }
+}
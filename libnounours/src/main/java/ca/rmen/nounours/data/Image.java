@@ -32,9 +32,13 @@ public class Image {
     private final String id;
     private String filename;
     private final Map<String, ImageFeature> featureToPosition = new HashMap<String, ImageFeature>();
-    private final Set<Feature> features = new HashSet<Feature>();
-    private final Map<String, Set<Image>> adjacentImages = new HashMap<String, Set<Image>>();
+    // Images and features are iterated in the order they were added, so
+    // that the same input always leads to the same images.
+    private final Set<Feature> features = new LinkedHashSet<Feature>();
+    private final Map<String, Set<Image>> adjacentImages = new LinkedHashMap<String, Set<Image>>();
     private String onReleaseImageId = null;
+    private final List<ImageVariant> variants = new ArrayList<ImageVariant>();
+    private final List<ImageLayer> layers = new ArrayList<ImageLayer>();
 
     /**
      * @param id
@@ -107,7 +111,7 @@ public class Image {
         // if the given feature moves.
         Set<Image> images = adjacentImages.get(featureId);
         if (images == null) {
-            images = new HashSet<Image>();
+            images = new LinkedHashSet<Image>();
             adjacentImages.put(featureId, images);
         }
         // Add the transition if we don't have it already.
@@ -145,6 +149,68 @@ public class Image {
         return Collections.unmodifiableList(result);
     }
 
+    /**
+     * Declare another file containing this image, at a given resolution.
+     *
+     * @param variant
+     *            the file and its resolution.
+     */
+    public void addVariant(final ImageVariant variant) {
+        variants.add(variant);
+    }
+
+    /**
+     * @return the files containing this image at different resolutions. This
+     *         is empty if the image only has one file.
+     */
+    public List<ImageVariant> getVariants() {
+        return Collections.unmodifiableList(variants);
+    }
+
+    /**
+     * @param width
+     *            the width at which the image will be displayed
+     * @param height
+     *            the height at which the image will be displayed
+     * @return the smallest variant which is at least as large as the given
+     *         size, or the largest variant if none is large enough. Returns
+     *         null if this image has no variants.
+     */
+    public ImageVariant getVariant(final int width, final int height) {
+        ImageVariant result = null;
+        for (ImageVariant variant : variants) {
+            if (result == null) {
+                result = variant;
+                continue;
+            }
+            boolean covers = variant.getWidth() >= width && variant.getHeight() >= height;
+            boolean resultCovers = result.getWidth() >= width && result.getHeight() >= height;
+            long area = (long) variant.getWidth() * variant.getHeight();
+            long resultArea = (long) result.getWidth() * result.getHeight();
+            if ((covers && (!resultCovers || area < resultArea)) || (!covers && !resultCovers && area > resultArea))
+                result = variant;
+        }
+        return result;
+    }
+
+    /**
+     * Add a layer on top of the existing layers of this image.
+     *
+     * @param layer
+     *            the layer file and its position.
+     */
+    public void addLayer(final ImageLayer layer) {
+        layers.add(layer);
+    }
+
+    /**
+     * @return the layers which make up this image, from the bottom to the top.
+     *         This is empty if the image is in one file.
+     */
+    public List<ImageLayer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
     /**
      * @param onReleaseImageId
      *            The image which should be displayed when the user releases the
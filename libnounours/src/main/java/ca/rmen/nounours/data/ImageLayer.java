@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+/**
+ * A part of an image, drawn at a given position over the layers below it.
+ * The same layer file, for example a body part, may be used by many images.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ImageLayer {
+
+    private final String filename;
+    private final int x;
+    private final int y;
+
+    /**
+     * @param filename
+     *            the location of the layer image file on disk.
+     * @param x
+     *            the x-position of the layer in the image
+     * @param y
+     *            the y-position of the layer in the image
+     */
+    public ImageLayer(final String filename, final int x, final int y) {
+        this.filename = filename;
+        this.x = x;
+        this.y = y;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    @Override
+    public String toString() {
+        return filename + "@" + x + "," + y;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+/**
+ * A version of an image, at a given resolution.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ImageVariant {
+
+    private final int width;
+    private final int height;
+    private final String filename;
+
+    /**
+     * @param width
+     *            the width of the image in this file
+     * @param height
+     *            the height of the image in this file
+     * @param filename
+     *            the location of the image file on disk.
+     */
+    public ImageVariant(final int width, final int height, final String filename) {
+        this.width = width;
+        this.height = height;
+        this.filename = filename;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "," + filename;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ca.rmen.nounours.io.RecordingStore;
+
+/**
+ * An animation whose frames are read from a {@link RecordingStore} when
+ * they're accessed, instead of being kept in memory. Reference records are
+ * expanded into the frames of their animation only then. The interval is 1000
+ * milliseconds, so the duration of each frame is in seconds.
+ *
+ * The frames are meant to be read in order, for playback or export: a cursor
+ * on the current record makes sequential access cheap, while random access
+ * costs the distance to the cursor.
+ *
+ * The animation is cloned as a plain {@link Animation} containing all the
+ * frames. It is serialized like an {@link Animation}, reading the frames once,
+ * and deserialized as a plain {@link Animation}.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class RecordedAnimation extends Animation {
+
+    // Never deserialized: the serialized form is a SerializedAnimation.
+    private static final long serialVersionUID = 1L;
+
+    private final transient RecordingStore store;
+    private final transient List<Image> images;
+    private final transient List<Animation> animations;
+    private final int frameCount;
+    private final long duration;
+
+    // The record containing the last frame read, its first frame, and its
+    // number of frames.
+    private transient int cursorRecord = 0;
+    private transient int cursorFirstFrame = 0;
+    private transient int cursorFrameCount = -1;
+
+    // The view of the frames returned by getImages().
+    private final transient List<AnimationImage> frames = new AbstractList<AnimationImage>() {
+        @Override
+        public AnimationImage get(int index) {
+            if (index < 0 || index >= frameCount)
+                throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+            try {
+                return getFrame(index);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read frame " + index, e);
+            }
+        }
+
+        @Override
+        public int size() {
+            return frameCount;
+        }
+    };
+
+    /**
+     * @param id
+     *            an identifier for the animation
+     * @param label
+     *            the label which will be displayed in the UI for this
+     *            animation.
+     * @param store
+     *            the records of the recording
+     * @param images
+     *            the images of the frame records, by index.
+     * @param animations
+     *            the animations of the reference records, by index.
+     * @param frameCount
+     *            the number of frames, once the records are expanded.
+     * @param duration
+     *            the total duration, in milliseconds.
+     */
+    public RecordedAnimation(String id, String label, RecordingStore store, List<Image> images,
+            List<Animation> animations, int frameCount, long duration) {
+        super(id, label, 1000, 1, false, false, null);
+        this.store = store;
+        this.images = Collections.unmodifiableList(new ArrayList<Image>(images));
+        this.animations = Collections.unmodifiableList(new ArrayList<Animation>(animations));
+        this.frameCount = frameCount;
+        this.duration = duration;
+    }
+
+    /**
+     * @return a view of the frames, which reads each frame from the store
+     *         when it is accessed.
+     * @throws IllegalStateException
+     *             if a frame can't be read from the store.
+     */
+    @Override
+    public List<AnimationImage> getImages() {
+        return frames;
+    }
+
+    /**
+     * @return the number of records in the store.
+     */
+    public int getRecordCount() {
+        return store.size();
+    }
+
+    private synchronized AnimationImage getFrame(int frame) throws IOException {
+        if (cursorFrameCount < 0)
+            cursorFrameCount = getFrameCount(cursorRecord);
+        // Move the cursor to the record containing the frame.
+        while (frame < cursorFirstFrame) {
+            cursorRecord--;
+            cursorFrameCount = getFrameCount(cursorRecord);
+            cursorFirstFrame -= cursorFrameCount;
+        }
+        while (frame >= cursorFirstFrame + cursorFrameCount) {
+            cursorFirstFrame += cursorFrameCount;
+            cursorRecord++;
+            cursorFrameCount = getFrameCount(cursorRecord);
+        }
+        int index = store.getIndex(cursorRecord);
+        int repeat = store.getRepeat(cursorRecord);
+        if (repeat == 0)
+            return new AnimationImage(images.get(index), (float) store.getDuration(cursorRecord) / 1000);
+        Animation animation = animations.get(index);
+        List<AnimationImage> animationFrames = animation.getImages();
+        AnimationImage animationFrame = animationFrames.get((frame - cursorFirstFrame) % animationFrames.size());
+        float frameDuration = store.getDuration(cursorRecord) * animationFrame.getDuration() / 1000;
+        return new AnimationImage(animationFrame.getImage(), frameDuration);
+    }
+
+    /**
+     * @return the number of frames of the given record, once expanded.
+     */
+    private int getFrameCount(int record) throws IOException {
+        int repeat = store.getRepeat(record);
+        if (repeat == 0)
+            return 1;
+        return animations.get(store.getIndex(record)).getImages().size() * repeat;
+    }
+
+    @Override
+    public void addImage(Image image, float duration) {
+        throw new UnsupportedOperationException("A recorded animation can't be modified");
+    }
+
+    @Override
+    public long getDuration() {
+        return duration;
+    }
+    /**
+     * Release the store of the frames. The frames can't be read after this.
+     *
+     * @throws IOException
+     *             if the store could not be closed.
+     */
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * @return a copy of this animation, with all the frames in memory.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return toAnimation();
+    }
+
+    private Animation toAnimation() {
+        Animation result = new Animation(getId(), getLabel(), getInterval(), getRepeat(), isVisible(), isVibrate(),
+                getSoundId());
+        for (AnimationImage frame : getImages())
+            result.addImage(frame.getImage(), frame.getDuration());
+        return result;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return serializedForm(this);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import ca.rmen.nounours.io.AnimationCodec;
+
+/**
+ * The serialized form of an {@link Animation}: the animation encoded by the
+ * {@link AnimationCodec}. The frames of the deserialized animation share one
+ * image instance per image id. Use {@link AnimationCodec} directly to decode
+ * the frames against the images of a theme.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class SerializedAnimation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] data;
+
+    SerializedAnimation(Animation animation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AnimationCodec.encode(animation, out);
+        data = out.toByteArray();
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        try {
+            return AnimationCodec.decode(new ByteArrayInputStream(data), null);
+        } catch (IOException e) {
+            InvalidObjectException exception = new InvalidObjectException("Could not decode animation");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import ca.rmen.nounours.Util;
 import ca.rmen.nounours.io.*;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -41,6 +42,7 @@ public class Theme {
 
     private Map<String, Image> images = new HashMap<String, Image>();
     private Map<String, Animation> animations = new HashMap<String, Animation>();
+    private AnimationRegistry animationRegistry = null;
     private Map<String, Sound> sounds = new HashMap<String, Sound>();
     private List<FlingAnimation> flingAnimations = new ArrayList<FlingAnimation>();
     private Animation shakeAnimation = null;
@@ -99,15 +101,29 @@ public class Theme {
         InputStream animationFile = streamLoader.open(new URI(location.toString() + File.separator + "animation.csv"));
         InputStream flingAnimationFile = streamLoader.open(new URI(location.toString() + File.separator + "flinganimation.csv"));
         InputStream soundFile = streamLoader.open(new URI(location.toString() + File.separator + "sound.csv"));
+        InputStream imageVariantFile = openOptional(streamLoader, "imagevariant.csv");
+        InputStream imageLayerFile = openOptional(streamLoader, "imagelayer.csv");
         init(propertiesFile, imagesFile, featureFile, imageFeatureFile, adjacentImageFile, animationFile,
-                flingAnimationFile, soundFile);
+                flingAnimationFile, soundFile, imageVariantFile, imageLayerFile);
         isLoaded = true;
 
     }
 
+    /**
+     * @return the given file in the theme folder, or null if the theme doesn't have this file.
+     */
+    private InputStream openOptional(StreamLoader streamLoader, String filename) throws URISyntaxException, IOException {
+        try {
+            return streamLoader.open(new URI(location.toString() + File.separator + filename));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     private void init(InputStream propertiesFile, InputStream imageFile, InputStream featureFile,
             InputStream imageFeatureFile, InputStream adjacentImageFile, InputStream animationFile,
-            InputStream flingAnimationFile, InputStream soundFile) throws IOException {
+            InputStream flingAnimationFile, InputStream soundFile, InputStream imageVariantFile,
+            InputStream imageLayerFile) throws IOException {
         // Read theme properties
         themeProperties = new Properties();
         themeProperties.load(propertiesFile);
@@ -127,6 +143,20 @@ public class Theme {
         ImageReader imageReader = new ImageReader(imageFile);
         images = imageReader.getImages();
 
+        // Load the optional list of image files at other resolutions.
+        if (imageVariantFile != null) {
+            new ImageVariantReader(images, imageVariantFile);
+            // The main file of each image is at the theme resolution.
+            for (Image image : images.values()) {
+                if (!image.getVariants().isEmpty())
+                    image.addVariant(new ImageVariant(width, height, image.getFilename()));
+            }
+        }
+
+        // Load the optional list of layers of images which are composited at runtime.
+        if (imageLayerFile != null)
+            new ImageLayerReader(images, imageLayerFile);
+
         // Load the list of sounds.
         SoundReader soundReader = new SoundReader(soundFile);
         sounds = soundReader.getSounds();
@@ -157,6 +187,10 @@ public class Theme {
         FlingAnimationReader flingAnimationReader = new FlingAnimationReader(flingAnimationFile);
         flingAnimations = flingAnimationReader.getFlingAnimations();
 
+        // Index the animations.
+        animationRegistry = new AnimationRegistry(animations.values(), animationReader.getWeights(),
+                flingAnimations, Arrays.asList(shakeAnimation, resumeAnimation, idleAnimation, endIdleAnimation));
+
         for (Image image : images.values()) {
             if (image.getId().equals(defaultImageId)) {
                 defaultImage = image;
@@ -194,6 +228,15 @@ public class Theme {
         return animations;
     }
 
+    /**
+     * Get the indexed animations.
+     *
+     * @return the animation registry, or null if the theme isn't loaded.
+     */
+    public AnimationRegistry getAnimationRegistry() {
+        return animationRegistry;
+    }
+
     /**
      * Get the sounds.
      * 
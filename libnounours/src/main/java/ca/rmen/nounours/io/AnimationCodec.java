@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * Compact binary format of an animation.
+ *
+ * The format starts with a magic number, a version, the attributes of the
+ * animation, and a dictionary of the distinct images of the animation: the id
+ * and file name of each image, written once. Then come the number of frames,
+ * the size in bytes of the frames, and the frames. Each frame is a varint,
+ * and the duration of the frame only if it differs from the duration of the
+ * previous frame. The varint holds the index of the image in the dictionary,
+ * shifted left by one, and a low bit set if the frame has the duration of the
+ * previous frame. Most frames of a theme animation take one byte. The frames
+ * are read in one block, and decoded from memory.
+ *
+ * When an animation is decoded, its images are taken from a theme, so that
+ * the frames share the image instances of the theme, with their features and
+ * adjacent images. Images which aren't in the theme are created once, and
+ * shared by all the frames which show them.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class AnimationCodec {
+
+    // "NANI"
+    private static final int MAGIC = 0x4e414e49;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_VISIBLE = 1;
+    private static final int FLAG_VIBRATE = 1 << 1;
+    private static final int FLAG_ID = 1 << 2;
+    private static final int FLAG_LABEL = 1 << 3;
+    private static final int FLAG_SOUND = 1 << 4;
+
+    private AnimationCodec() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Write the animation. The frames are read once, in order.
+     *
+     * @param animation
+     *            the animation to write.
+     * @param outputStream
+     *            where the animation is written. It is flushed, but not closed.
+     * @throws IOException
+     *             if the animation could not be written.
+     */
+    public static void encode(Animation animation, OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.writeInt(MAGIC);
+        writeVarInt(out, VERSION);
+        int flags = 0;
+        if (animation.isVisible())
+            flags |= FLAG_VISIBLE;
+        if (animation.isVibrate())
+            flags |= FLAG_VIBRATE;
+        if (animation.getId() != null)
+            flags |= FLAG_ID;
+        if (animation.getLabel() != null)
+            flags |= FLAG_LABEL;
+        if (animation.getSoundId() != null)
+            flags |= FLAG_SOUND;
+        out.writeByte(flags);
+        if (animation.getId() != null)
+            out.writeUTF(animation.getId());
+        if (animation.getLabel() != null)
+            out.writeUTF(animation.getLabel());
+        if (animation.getSoundId() != null)
+            out.writeUTF(animation.getSoundId());
+        writeVarInt(out, animation.getInterval());
+        writeVarInt(out, animation.getRepeat());
+
+        // Build the dictionary and the index of each frame.
+        List<AnimationImage> frames = animation.getImages();
+        int frameCount = frames.size();
+        int[] frameImageIndexes = new int[frameCount];
+        List<Image> dictionary = new ArrayList<Image>();
+        Map<String, Integer> dictionaryIndexes = new HashMap<String, Integer>();
+        int frameIndex = 0;
+        for (AnimationImage frame : frames) {
+            Image image = frame.getImage();
+            Integer imageIndex = dictionaryIndexes.get(image.getId());
+            if (imageIndex == null) {
+                imageIndex = dictionary.size();
+                dictionary.add(image);
+                dictionaryIndexes.put(image.getId(), imageIndex);
+            }
+            frameImageIndexes[frameIndex++] = imageIndex;
+        }
+        writeVarInt(out, dictionary.size());
+        for (Image image : dictionary) {
+            out.writeUTF(image.getId());
+            out.writeUTF(image.getFilename() == null ? "" : image.getFilename());
+        }
+
+        ByteArrayOutputStream frameData = new ByteArrayOutputStream(frameCount);
+        DataOutputStream frameOut = new DataOutputStream(frameData);
+        float lastDuration = Float.NaN;
+        frameIndex = 0;
+        for (AnimationImage frame : frames) {
+            float duration = frame.getDuration();
+            // Compare the bits, so that a NaN duration is written once too.
+            boolean isSameDuration = Float.floatToIntBits(duration) == Float.floatToIntBits(lastDuration);
+            writeVarInt(frameOut, frameImageIndexes[frameIndex++] << 1 | (isSameDuration ? 1 : 0));
+            if (!isSameDuration)
+                frameOut.writeFloat(duration);
+            lastDuration = duration;
+        }
+        writeVarInt(out, frameCount);
+        writeVarInt(out, frameData.size());
+        frameData.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read an animation written by {@link #encode(Animation, OutputStream)}.
+     *
+     * @param inputStream
+     *            the encoded animation. It is read up to the end of the
+     *            animation, one byte at a time, so it should be buffered. It
+     *            is not closed.
+     * @param theme
+     *            the frames show the images of this theme with the same ids.
+     *            May be null.
+     * @return the decoded animation.
+     * @throws IOException
+     *             if the animation could not be read.
+     */
+    public static Animation decode(InputStream inputStream, Theme theme) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an encoded animation");
+        int version = readVarInt(in);
+        if (version != VERSION)
+            throw new IOException("Unsupported animation version " + version);
+        int flags = in.readUnsignedByte();
+        String id = (flags & FLAG_ID) != 0 ? in.readUTF() : null;
+        String label = (flags & FLAG_LABEL) != 0 ? in.readUTF() : null;
+        String soundId = (flags & FLAG_SOUND) != 0 ? in.readUTF() : null;
+        int interval = readVarInt(in);
+        int repeat = readVarInt(in);
+        Animation animation = new Animation(id, label, interval, repeat, (flags & FLAG_VISIBLE) != 0,
+                (flags & FLAG_VIBRATE) != 0, soundId);
+
+        Map<String, Image> themeImages = theme == null ? null : theme.getImages();
+        Image[] dictionary = new Image[readVarInt(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            String imageId = in.readUTF();
+            String filename = in.readUTF();
+            Image image = themeImages == null ? null : themeImages.get(imageId);
+            if (image == null)
+                image = new Image(imageId, filename.length() == 0 ? null : filename);
+            dictionary[i] = image;
+        }
+
+        int frameCount = readVarInt(in);
+        byte[] frameData = new byte[readVarInt(in)];
+        in.readFully(frameData);
+        float duration = Float.NaN;
+        int position = 0;
+        try {
+            for (int i = 0; i < frameCount; i++) {
+                // Read the varint of the frame.
+                int frame = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = frameData[position++];
+                    frame |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                int imageIndex = frame >>> 1;
+                if (imageIndex >= dictionary.length)
+                    throw new IOException("Invalid image index " + imageIndex + " in frame " + i);
+                if ((frame & 1) == 0) {
+                    duration = Float.intBitsToFloat((frameData[position] & 0xff) << 24
+                            | (frameData[position + 1] & 0xff) << 16 | (frameData[position + 2] & 0xff) << 8
+                            | (frameData[position + 3] & 0xff));
+                    position += 4;
+                }
+                animation.addImage(dictionary[imageIndex], duration);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated frames");
+        }
+        return animation;
+    }
+
+    /**
+     * Write an int in 7-bit groups, least significant first. Negative values
+     * take 5 bytes.
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+}
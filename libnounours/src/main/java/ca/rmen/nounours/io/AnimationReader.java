@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -39,13 +40,16 @@ import java.util.Map;
  - Visible: boolean (default=true), if the animation will appear in the animations menu
  - Vibrate: boolean (default=false), if the device should vibrate when this animation is displayed
  - Sound: String, the id of a sound to play when the animation is displayed.
+ - Weight: float (default=1), the relative probability of choosing this animation as a random animation.
  * </code>
  *
  * @author Carmen Alvarez
  *
  */
 public class AnimationReader extends NounoursReader {
-    private final Map<String, Animation> animations = new HashMap<String, Animation>();
+    // In the order of the file.
+    private final Map<String, Animation> animations = new LinkedHashMap<String, Animation>();
+    private final Map<String, Float> weights = new HashMap<String, Float>();
 
     private static final String COL_ID = "Id";
     private static final String COL_LABEL = "Label";
@@ -55,6 +59,7 @@ public class AnimationReader extends NounoursReader {
     private static final String COL_VISIBLE = "Visible";
     private static final String COL_VIBRATE = "Vibrate";
     private static final String COL_SOUND = "Sound";
+    private static final String COL_WEIGHT = "Weight";
 
     private final Map<String, Image> images;
 
@@ -95,6 +100,9 @@ public class AnimationReader extends NounoursReader {
                 animation.addImage(images.get(imageId), duration);
         }
         animations.put(id, animation);
+        final String weight = reader.getValue(COL_WEIGHT);
+        if (weight != null && weight.length() > 0)
+            weights.put(id, Float.parseFloat(weight));
 
     }
 
@@ -104,4 +112,12 @@ public class AnimationReader extends NounoursReader {
     public Map<String, Animation> getAnimations() {
         return Collections.unmodifiableMap(animations);
     }
+
+    /**
+     * @return a Map of animation id to the weight of the animation, for the
+     *         animations which have a weight.
+     */
+    public Map<String, Float> getWeights() {
+        return Collections.unmodifiableMap(weights);
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the records of a recording to an append-only file, so that the memory
+ * used doesn't depend on the length of the recording. Each record is three
+ * ints: the index, the duration and the repeat.
+ *
+ * New records are collected in a fixed-size window, which is written to the
+ * file when it's full. Records are read back through another window of the
+ * same size, which holds the block of consecutive records last read.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class FileRecordingStore implements RecordingStore {
+
+    static final int RECORD_SIZE = 12;
+    private static final int DEFAULT_WINDOW_SIZE = 512;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int windowSize;
+    private final ByteBuffer writeWindow;
+    private final ByteBuffer readWindow;
+    // The first record in the read window, or -1 if it's empty.
+    private int readWindowStart = -1;
+    // The number of records written to the file.
+    private int flushedSize = 0;
+    private int size = 0;
+
+    /**
+     * @param file
+     *            the file to write to. Its previous content is erased.
+     * @param windowSize
+     *            the number of records in each of the write and read windows.
+     * @throws IOException
+     *             if the file could not be opened.
+     */
+    public FileRecordingStore(File file, int windowSize) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.channel.truncate(0);
+        this.windowSize = windowSize;
+        this.writeWindow = ByteBuffer.allocate(windowSize * RECORD_SIZE);
+        this.readWindow = ByteBuffer.allocate(windowSize * RECORD_SIZE);
+    }
+
+    /**
+     * Use windows of {@value #DEFAULT_WINDOW_SIZE} records.
+     *
+     * @see #FileRecordingStore(File, int)
+     */
+    public FileRecordingStore(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    @Override
+    public synchronized void append(int index, int duration, int repeat) throws IOException {
+        if (!writeWindow.hasRemaining())
+            flush();
+        writeWindow.putInt(index).putInt(duration).putInt(repeat);
+        size++;
+    }
+
+    /**
+     * Write the records of the write window to the file.
+     *
+     * @throws IOException
+     *             if the records could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        writeWindow.flip();
+        long position = (long) flushedSize * RECORD_SIZE;
+        while (writeWindow.hasRemaining())
+            position += channel.write(writeWindow, position);
+        writeWindow.clear();
+        flushedSize = size;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getIndex(int record) throws IOException {
+        return getRecordBuffer(record).getInt(getRecordOffset(record));
+    }
+
+    @Override
+    public synchronized int getDuration(int record) throws IOException {
+        return getRecordBuffer(record).getInt(getRecordOffset(record) + 4);
+    }
+
+    @Override
+    public synchronized int getRepeat(int record) throws IOException {
+        return getRecordBuffer(record).getInt(getRecordOffset(record) + 8);
+    }
+
+    /**
+     * @return the window which contains the given record. The read window is
+     *         loaded from the file if needed.
+     */
+    private ByteBuffer getRecordBuffer(int record) throws IOException {
+        if (record < 0 || record >= size)
+            throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+        if (record >= flushedSize)
+            return writeWindow;
+        int blockStart = record - record % windowSize;
+        if (blockStart != readWindowStart) {
+            readWindow.clear();
+            int blockSize = Math.min(windowSize, flushedSize - blockStart);
+            readWindow.limit(blockSize * RECORD_SIZE);
+            long position = (long) blockStart * RECORD_SIZE;
+            while (readWindow.hasRemaining()) {
+                int read = channel.read(readWindow, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of recording at record " + record);
+                position += read;
+            }
+            readWindowStart = blockStart;
+        }
+        return readWindow;
+    }
+
+    private int getRecordOffset(int record) {
+        if (record >= flushedSize)
+            return (record - flushedSize) * RECORD_SIZE;
+        return (record - readWindowStart) * RECORD_SIZE;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+}
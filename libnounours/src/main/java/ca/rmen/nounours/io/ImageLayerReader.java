@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageLayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads a CSV file of the layers which make up images. The layers of an image
+ * are drawn in the order in which they appear in the file: the first layer is
+ * at the bottom. The required columns are: <code>
+   - ImageId: String.  The id of the image.
+   - Filename: String.  The filename containing the layer image data.
+   - X: integer.  The x-position of the layer in the image.
+   - Y: integer.  The y-position of the layer in the image.
+ * </code>
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ImageLayerReader extends NounoursReader {
+
+    private static final String COL_IMAGE_ID = "ImageId";
+    private static final String COL_FILENAME = "Filename";
+    private static final String COL_X = "X";
+    private static final String COL_Y = "Y";
+
+    private final Map<String, Image> imageMap;
+
+    /**
+     * Immediately begins reading the CSV file.
+     *
+     * @param imageMap
+     *            a Map of image id to Image. All images referenced by the CSV
+     *            file must be in this Map. The images in this Map are updated
+     *            by this class.
+     * @param is
+     *            the CSV stream
+     * @throws IOException if the file could not be read.
+     */
+    public ImageLayerReader(Map<String, Image> imageMap, InputStream is) throws IOException {
+        super(is);
+        this.imageMap = imageMap;
+        load();
+    }
+
+    /**
+     * Adds the layer read from the line to its image.
+     * @param reader contains the line to be read.
+     */
+    @Override
+    protected void readLine(CSVReader reader) {
+        String imageId = reader.getValue(COL_IMAGE_ID);
+        String filename = reader.getValue(COL_FILENAME);
+        int x = Integer.parseInt(reader.getValue(COL_X));
+        int y = Integer.parseInt(reader.getValue(COL_Y));
+        Image image = imageMap.get(imageId);
+        image.addLayer(new ImageLayer(filename, x, y));
+    }
+
+}
@@ -29,7 +29,7 @@ import java.util.Map;
 /**
  * Reads a CSV file of image data. The required columns are: <code>
    - Id: String.  The id of the image.
-   - Filename: String.  The filename containing the image data.
+   - Filename: String.  The filename containing the image data. This may be empty if the image is made of layers (see {@link ImageLayerReader}).
   </code> The optional columns are:<code>
    - OnRelease: String.  The id of another image which should be displayed when the user releases the mouse/finger from the current image.
  * </code>Id (String, id of the image),
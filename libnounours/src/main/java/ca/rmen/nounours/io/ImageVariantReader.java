@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageVariant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Reads a CSV file of image files at different resolutions. The required
+ * columns are: <code>
+   - ImageId: String.  The id of the image.
+   - Width: integer.  The width of the image in this file.
+   - Height: integer.  The height of the image in this file.
+   - Filename: String.  The filename containing the image data.
+ * </code>
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ImageVariantReader extends NounoursReader {
+
+    private static final String COL_IMAGE_ID = "ImageId";
+    private static final String COL_WIDTH = "Width";
+    private static final String COL_HEIGHT = "Height";
+    private static final String COL_FILENAME = "Filename";
+
+    private final Map<String, Image> imageMap;
+
+    /**
+     * Immediately begins reading the CSV file.
+     *
+     * @param imageMap
+     *            a Map of image id to Image. All images referenced by the CSV
+     *            file must be in this Map. The images in this Map are updated
+     *            by this class.
+     * @param is
+     *            the CSV stream
+     * @throws IOException if the file could not be read.
+     */
+    public ImageVariantReader(Map<String, Image> imageMap, InputStream is) throws IOException {
+        super(is);
+        this.imageMap = imageMap;
+        load();
+    }
+
+    /**
+     * Adds the variant read from the line to its image.
+     * @param reader contains the line to be read.
+     */
+    @Override
+    protected void readLine(CSVReader reader) {
+        String imageId = reader.getValue(COL_IMAGE_ID);
+        int width = Integer.parseInt(reader.getValue(COL_WIDTH));
+        int height = Integer.parseInt(reader.getValue(COL_HEIGHT));
+        String filename = reader.getValue(COL_FILENAME);
+        Image image = imageMap.get(imageId);
+        image.addVariant(new ImageVariant(width, height, filename));
+    }
+
+}
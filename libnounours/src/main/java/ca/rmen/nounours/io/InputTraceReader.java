@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import ca.rmen.nounours.NounoursInputListener;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an input trace written by an {@link InputTraceWriter}, one event at a
+ * time. The reader holds the current event, so reading a trace allocates
+ * nothing per event.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class InputTraceReader {
+
+    private final DataInputStream in;
+    private final long randomSeed;
+    private final long startTime;
+    private int kind = -1;
+    private long timestamp;
+    private int x;
+    private int y;
+    private float velX;
+    private float velY;
+
+    /**
+     * Read the header of the trace.
+     *
+     * @param inputStream
+     *            the trace.
+     * @throws IOException
+     *             if the header could not be read, or this is not an input
+     *             trace.
+     */
+    public InputTraceReader(InputStream inputStream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != InputTraceWriter.MAGIC)
+            throw new IOException("Not an input trace");
+        int version = in.readInt();
+        if (version != InputTraceWriter.VERSION)
+            throw new IOException("Unsupported input trace version " + version);
+        randomSeed = in.readLong();
+        startTime = in.readLong();
+        timestamp = startTime;
+    }
+
+    /**
+     * @return the seed of the random generator of the recorded nounours.
+     */
+    public long getRandomSeed() {
+        return randomSeed;
+    }
+
+    /**
+     * @return the time the recording of the trace started.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Read the next event.
+     *
+     * @return false if the trace has ended. The timestamp is then the time the
+     *         trace was closed.
+     * @throws IOException
+     *             if the event could not be read.
+     */
+    public boolean next() throws IOException {
+        if (kind == InputTraceWriter.EVENT_END)
+            return false;
+        try {
+            kind = in.readUnsignedByte();
+        } catch (EOFException e) {
+            // The trace wasn't closed: end it at the last event.
+            kind = InputTraceWriter.EVENT_END;
+            return false;
+        }
+        timestamp += in.readInt();
+        switch (kind) {
+        case InputTraceWriter.EVENT_END:
+            return false;
+        case InputTraceWriter.EVENT_PRESS:
+        case InputTraceWriter.EVENT_MOVE:
+            x = in.readInt();
+            y = in.readInt();
+            break;
+        case InputTraceWriter.EVENT_FLING:
+            x = in.readInt();
+            y = in.readInt();
+            velX = in.readFloat();
+            velY = in.readFloat();
+            break;
+        case InputTraceWriter.EVENT_RELEASE:
+        case InputTraceWriter.EVENT_SHAKE:
+        case InputTraceWriter.EVENT_RESUME:
+            break;
+        default:
+            throw new IOException("Unknown input trace event " + kind);
+        }
+        return true;
+    }
+
+    /**
+     * @return the time of the current event.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Pass the current event to the given listener.
+     */
+    public void dispatch(NounoursInputListener listener) {
+        switch (kind) {
+        case InputTraceWriter.EVENT_PRESS:
+            listener.onPress(x, y);
+            break;
+        case InputTraceWriter.EVENT_MOVE:
+            listener.onMove(x, y);
+            break;
+        case InputTraceWriter.EVENT_RELEASE:
+            listener.onRelease();
+            break;
+        case InputTraceWriter.EVENT_FLING:
+            listener.onFling(x, y, velX, velY);
+            break;
+        case InputTraceWriter.EVENT_SHAKE:
+            listener.onShake();
+            break;
+        case InputTraceWriter.EVENT_RESUME:
+            listener.onResume();
+            break;
+        default:
+            break;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
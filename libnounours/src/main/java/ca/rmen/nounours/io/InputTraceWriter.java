@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.NounoursClock;
+import ca.rmen.nounours.NounoursInputListener;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the user input of a session to an input trace, which can be read by
+ * an {@link InputTraceReader} and replayed.
+ *
+ * The trace starts with a header: a magic number, the format version, the
+ * seed of the random generator of the nounours and the start time of the
+ * session. Each event is then written as its kind (a byte), the number of
+ * milliseconds since the previous event (an int), and the arguments of the
+ * event. The trace ends with an end event, at the time the trace was closed.
+ *
+ * Register the writer with {@link ca.rmen.nounours.Nounours#setInputListener(NounoursInputListener)}.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class InputTraceWriter implements NounoursInputListener {
+
+    // "NTRC"
+    static final int MAGIC = 0x4e545243;
+    static final int VERSION = 1;
+
+    static final int EVENT_END = 0;
+    static final int EVENT_PRESS = 1;
+    static final int EVENT_MOVE = 2;
+    static final int EVENT_RELEASE = 3;
+    static final int EVENT_FLING = 4;
+    static final int EVENT_SHAKE = 5;
+    static final int EVENT_RESUME = 6;
+
+    private final DataOutputStream out;
+    private final NounoursClock clock;
+    private long lastEventTimestamp;
+    // The first error writing the trace, thrown when the trace is closed.
+    private IOException error = null;
+
+    /**
+     * Reseed the random generator of the nounours, and write the header of the
+     * trace. The replayer seeds the nounours with the same seed, so that the
+     * replayed session makes the same random choices from the start of the
+     * trace.
+     *
+     * @param outputStream
+     *            where the trace is written.
+     * @param nounours
+     *            the nounours whose input is traced.
+     * @throws IOException
+     *             if the header could not be written.
+     */
+    public InputTraceWriter(OutputStream outputStream, Nounours nounours) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        this.clock = nounours.getClock();
+        lastEventTimestamp = clock.currentTimeMillis();
+        long randomSeed = lastEventTimestamp;
+        nounours.setRandomSeed(randomSeed);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(randomSeed);
+        out.writeLong(lastEventTimestamp);
+    }
+
+    @Override
+    public synchronized void onPress(int x, int y) {
+        try {
+            writeEvent(EVENT_PRESS);
+            out.writeInt(x);
+            out.writeInt(y);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onMove(int x, int y) {
+        try {
+            writeEvent(EVENT_MOVE);
+            out.writeInt(x);
+            out.writeInt(y);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onRelease() {
+        try {
+            writeEvent(EVENT_RELEASE);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onFling(int x, int y, float velX, float velY) {
+        try {
+            writeEvent(EVENT_FLING);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeFloat(velX);
+            out.writeFloat(velY);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onShake() {
+        try {
+            writeEvent(EVENT_SHAKE);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    @Override
+    public synchronized void onResume() {
+        try {
+            writeEvent(EVENT_RESUME);
+        } catch (IOException e) {
+            setError(e);
+        }
+    }
+
+    /**
+     * Write the end of the trace, and close the output stream.
+     *
+     * @throws IOException
+     *             if any part of the trace could not be written.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            writeEvent(EVENT_END);
+            out.close();
+        } catch (IOException e) {
+            setError(e);
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void writeEvent(int kind) throws IOException {
+        long now = Math.max(clock.currentTimeMillis(), lastEventTimestamp);
+        out.writeByte(kind);
+        out.writeInt((int) (now - lastEventTimestamp));
+        lastEventTimestamp = now;
+    }
+
+    private void setError(IOException e) {
+        if (error == null)
+            error = e;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the records of a recording in memory, in arrays of primitives.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class MemoryRecordingStore implements RecordingStore {
+
+    private int[] indexes = new int[256];
+    private int[] durations = new int[256];
+    private int[] repeats = new int[256];
+    private int size = 0;
+
+    @Override
+    public synchronized void append(int index, int duration, int repeat) {
+        if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, size * 2);
+            durations = Arrays.copyOf(durations, size * 2);
+            repeats = Arrays.copyOf(repeats, size * 2);
+        }
+        indexes[size] = index;
+        durations[size] = duration;
+        repeats[size] = repeat;
+        size++;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getIndex(int record) {
+        checkRecord(record);
+        return indexes[record];
+    }
+
+    @Override
+    public synchronized int getDuration(int record) {
+        checkRecord(record);
+        return durations[record];
+    }
+
+    @Override
+    public synchronized int getRepeat(int record) {
+        checkRecord(record);
+        return repeats[record];
+    }
+
+    private void checkRecord(int record) {
+        if (record < 0 || record >= size)
+            throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+}
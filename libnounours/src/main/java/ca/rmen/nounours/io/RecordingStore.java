@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.io;
+
+import java.io.IOException;
+
+/**
+ * Stores the records of a recording. A record is three ints: an index, a
+ * duration and a repeat count. A frame record, with a repeat of 0, shows the
+ * image at the index for the duration. A reference record, with a repeat of 1
+ * or more, plays the animation at the index, at the interval given by the
+ * duration, for that many repetitions. Records can only be appended, and can
+ * be read back at any time.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface RecordingStore {
+
+    /**
+     * Add a record at the end of the recording.
+     *
+     * @param index
+     *            the index of the image of a frame record, or of the animation
+     *            of a reference record, in the recording's tables.
+     * @param duration
+     *            the duration of a frame record, or the interval of a
+     *            reference record, in milliseconds.
+     * @param repeat
+     *            0 for a frame record, or the number of repetitions of the
+     *            animation of a reference record.
+     * @throws IOException
+     *             if the record could not be stored.
+     */
+    public abstract void append(int index, int duration, int repeat) throws IOException;
+
+    /**
+     * @return the number of records in the recording.
+     */
+    public abstract int size();
+
+    /**
+     * @param record
+     *            the position of the record in the recording.
+     * @return the index of the image or animation of the record.
+     * @throws IOException
+     *             if the record could not be read.
+     */
+    public abstract int getIndex(int record) throws IOException;
+
+    /**
+     * @param record
+     *            the position of the record in the recording.
+     * @return the duration or interval of the record, in milliseconds.
+     * @throws IOException
+     *             if the record could not be read.
+     */
+    public abstract int getDuration(int record) throws IOException;
+
+    /**
+     * @param record
+     *            the position of the record in the recording.
+     * @return 0 for a frame record, or the repeat count of a reference record.
+     * @throws IOException
+     *             if the record could not be read.
+     */
+    public abstract int getRepeat(int record) throws IOException;
+
+    /**
+     * Release the resources of the store. The records can't be read after
+     * this.
+     *
+     * @throws IOException
+     *             if records could not be written.
+     */
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the frames of an animation to an animated image file. An encoder is
+ * used for one file: {@link #start(File, Dimension)}, then
+ * {@link #addFrame(BufferedImage, int)} for each frame in order, then
+ * {@link #finish()}.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface AnimationEncoder {
+
+    /**
+     * @return true if the frames must be indexed images, with at most 256
+     *         colors.
+     */
+    public boolean isIndexed();
+
+    /**
+     * @param output the file to write.
+     * @param size the size of all the frames.
+     * @throws IOException if the file could not be created.
+     */
+    public void start(File output, Dimension size) throws IOException;
+
+    /**
+     * @param frame the image of the frame
+     * @param duration the time the frame is displayed, in milliseconds.
+     * @throws IOException if the frame could not be written.
+     */
+    public void addFrame(BufferedImage frame, int duration) throws IOException;
+
+    /**
+     * Complete the file and close it.
+     *
+     * @throws IOException if the file could not be written.
+     */
+    public void finish() throws IOException;
+
+    /**
+     * Close the file, if it's open, without completing it.
+     */
+    public void abort();
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
+
+/**
+ * Exports an animation, such as a recording, to an animated image file, in
+ * the background. The export is a pipeline:
+ * <ol>
+ * <li>The export thread reads the frames of the animation in order, merging
+ * consecutive frames of the same image.</li>
+ * <li>The images are read, scaled, and quantized if the format needs it, on a
+ * pool of worker threads. Each distinct image is processed once, however many
+ * times it appears in the animation.</li>
+ * <li>The encoder thread writes the frames in order.</li>
+ * </ol>
+ * The export thread waits when the encoder has too many frames pending, so
+ * the memory used doesn't depend on the length of the animation.
+ *
+ * No UI thread is used. Exports run one at a time.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class AnimationExporter {
+
+    private static final long POLL_INTERVAL_MS = 100;
+    // Marks the end of the frames for the encoder.
+    private static final PendingFrame END = new PendingFrame(null, 0, 0);
+
+    private final ThemeImageReader imageReader;
+    private final ExecutorService exportExecutor;
+    private final ExecutorService workers;
+    private final ExecutorService encoderExecutor;
+    private final int maxPendingFrames;
+    private Color background = Color.BLACK;
+
+    /**
+     * @param themeFolder the folder relative to which the image file names are resolved.
+     * @param parallelism the number of threads which process images.
+     */
+    public AnimationExporter(File themeFolder, int parallelism) {
+        this.imageReader = new ThemeImageReader(themeFolder);
+        this.exportExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("export"));
+        this.workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("export-worker"));
+        this.encoderExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("export-encoder"));
+        this.maxPendingFrames = 4 * parallelism;
+    }
+
+    /**
+     * Use all the available processors.
+     *
+     * @param themeFolder the folder relative to which the image file names are resolved.
+     */
+    public AnimationExporter(File themeFolder) {
+        this(themeFolder, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param background the color around the images, if the output size doesn't
+     *            have the aspect ratio of the images.
+     */
+    public void setBackground(Color background) {
+        this.background = background;
+    }
+
+    /**
+     * Start exporting an animation. Cancelling the returned future with
+     * interruption stops the export and deletes the file.
+     *
+     * @param animation the animation to export
+     * @param size the size of the exported frames
+     * @param encoder writes the file, for example a {@link GifAnimationEncoder}
+     * @param output the file to write
+     * @param listener notified of the progress. May be null.
+     * @return the result of the export: the output file, or an
+     *         {@link ExecutionException} caused by the IOException which
+     *         stopped the export. If the incomplete file could not be
+     *         deleted, that error is suppressed by the cause.
+     */
+    public Future<File> export(final Animation animation, final Dimension size, final AnimationEncoder encoder,
+            final File output, final ExportProgressListener listener) {
+        return exportExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException, InterruptedException {
+                return doExport(animation, size, encoder, output, listener);
+            }
+        });
+    }
+
+    /**
+     * Stop the threads. Exports in progress are interrupted.
+     */
+    public void shutdown() {
+        exportExecutor.shutdownNow();
+        workers.shutdownNow();
+        encoderExecutor.shutdownNow();
+    }
+
+    private File doExport(Animation animation, Dimension size, final AnimationEncoder encoder, File output,
+            final ExportProgressListener listener) throws IOException, InterruptedException {
+        long before = System.currentTimeMillis();
+        final int frameCount = animation.getImages().size();
+        final BlockingQueue<PendingFrame> queue = new ArrayBlockingQueue<PendingFrame>(maxPendingFrames);
+        final CountDownLatch encoderDone = new CountDownLatch(1);
+        // Set by the thread which takes care of the encoder: the encoder
+        // task, or this thread if the task is cancelled before it starts.
+        final AtomicBoolean encoderClaimed = new AtomicBoolean(false);
+        try {
+            encoder.start(output, size);
+        } catch (IOException e) {
+            encoder.abort();
+            output.delete();
+            throw e;
+        }
+        Future<Integer> encoding = encoderExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (!encoderClaimed.compareAndSet(false, true))
+                    return 0;
+                try {
+                    int exportedFrames = 0;
+                    int encodedFrames = 0;
+                    PendingFrame frame;
+                    while ((frame = queue.take()) != END) {
+                        encoder.addFrame(frame.image.get(), frame.duration);
+                        encodedFrames++;
+                        exportedFrames += frame.frameCount;
+                        if (listener != null)
+                            listener.onProgress(exportedFrames, frameCount);
+                    }
+                    encoder.finish();
+                    return encodedFrames;
+                } catch (Exception e) {
+                    encoder.abort();
+                    throw e;
+                } finally {
+                    encoderDone.countDown();
+                }
+            }
+        });
+
+        // Only used by this thread.
+        Map<String, Future<BufferedImage>> processedImages = new HashMap<String, Future<BufferedImage>>();
+        boolean isComplete = false;
+        Throwable failure = null;
+        try {
+            Image runImage = null;
+            int runDuration = 0;
+            int runFrameCount = 0;
+            for (AnimationImage frame : animation.getImages()) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                int duration = Math.round(animation.getInterval() * frame.getDuration());
+                if (runImage != null && frame.getImage().getId().equals(runImage.getId())) {
+                    runDuration += duration;
+                    runFrameCount++;
+                    continue;
+                }
+                if (runImage != null)
+                    put(queue, new PendingFrame(process(runImage, size, encoder, processedImages), runDuration,
+                            runFrameCount), encoding);
+                runImage = frame.getImage();
+                runDuration = duration;
+                runFrameCount = 1;
+            }
+            if (runImage != null)
+                put(queue, new PendingFrame(process(runImage, size, encoder, processedImages), runDuration,
+                        runFrameCount), encoding);
+            put(queue, END, encoding);
+            int encodedFrames = encoding.get();
+            isComplete = true;
+            if (listener != null)
+                listener.onFinished(encodedFrames, processedImages.size(), System.currentTimeMillis() - before);
+            return output;
+        } catch (ExecutionException e) {
+            IOException error = toIOException(e);
+            failure = error;
+            throw error;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (!isComplete) {
+                encoding.cancel(true);
+                for (Future<BufferedImage> processedImage : processedImages.values())
+                    processedImage.cancel(true);
+                // If the encoder task didn't start, it never will: close the
+                // encoder here. Otherwise, wait for the task to abort it.
+                if (encoderClaimed.compareAndSet(false, true))
+                    encoder.abort();
+                else
+                    awaitUninterruptibly(encoderDone);
+                if (output.exists() && !output.delete() && failure != null)
+                    failure.addSuppressed(new IOException("Could not delete " + output));
+            }
+        }
+    }
+
+    /**
+     * @return the image of the frame, read, scaled and quantized in the
+     *         worker pool.
+     */
+    private Future<BufferedImage> process(final Image image, final Dimension size, final AnimationEncoder encoder,
+            Map<String, Future<BufferedImage>> processedImages) {
+        Future<BufferedImage> result = processedImages.get(image.getId());
+        if (result == null) {
+            result = workers.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws IOException {
+                    BufferedImage frame = BatchFrameRenderer.scale(imageReader.read(image), size, background);
+                    if (encoder.isIndexed())
+                        frame = ColorQuantizer.quantize(frame);
+                    return frame;
+                }
+            });
+            processedImages.put(image.getId(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Add a frame for the encoder, waiting while the encoder has too many
+     * frames pending.
+     *
+     * @throws ExecutionException if the encoder failed.
+     */
+    private static void put(BlockingQueue<PendingFrame> queue, PendingFrame frame, Future<?> encoding)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(frame, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            if (encoding.isDone()) {
+                encoding.get();
+                throw new ExecutionException(new IOException("The encoder stopped"));
+            }
+        }
+    }
+
+    /**
+     * @return the IOException at the origin of the failure of a task.
+     */
+    private static IOException toIOException(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof ExecutionException)
+            cause = cause.getCause();
+        if (cause instanceof IOException)
+            return (IOException) cause;
+        return new IOException(cause);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * A run of frames of the same image, waiting to be encoded.
+     */
+    private static class PendingFrame {
+        private final Future<BufferedImage> image;
+        // in milliseconds
+        private final int duration;
+        // The number of frames of the animation in the run.
+        private final int frameCount;
+
+        PendingFrame(Future<BufferedImage> image, int duration, int frameCount) {
+            this.image = image;
+            this.duration = duration;
+            this.frameCount = frameCount;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
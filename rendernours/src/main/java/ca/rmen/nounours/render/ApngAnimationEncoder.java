@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an animated PNG (APNG) which loops forever, in 8-bit RGB. ImageIO
+ * has no APNG writer, so the chunks are written here. The number of frames is
+ * only known at the end, so the animation control chunk is rewritten by
+ * {@link #finish()}.
+ *
+ * The compressed data of the last images written is cached, so an image which
+ * appears in many frames is only compressed once.
+ *
+ * Browsers which don't support APNG display the first frame.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ApngAnimationEncoder implements AnimationEncoder {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int COLOR_TYPE_RGB = 2;
+    // The largest delay we can write, with a denominator of 1000.
+    private static final int MAX_DELAY = 0xffff;
+    private static final int COMPRESSED_CACHE_SIZE = 64;
+
+    private RandomAccessFile file;
+    private Dimension size;
+    private long animationControlPosition;
+    private int frameCount;
+    private int sequenceNumber;
+    // The compressed data of the last images written, by image.
+    private final Map<BufferedImage, byte[]> compressedImages = new LinkedHashMap<BufferedImage, byte[]>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BufferedImage, byte[]> eldest) {
+            return size() > COMPRESSED_CACHE_SIZE;
+        }
+    };
+
+    @Override
+    public boolean isIndexed() {
+        return false;
+    }
+
+    @Override
+    public void start(File output, Dimension size) throws IOException {
+        this.size = size;
+        frameCount = 0;
+        sequenceNumber = 0;
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(0);
+        file.write(SIGNATURE);
+        Chunk header = new Chunk("IHDR");
+        header.writeInt(size.width);
+        header.writeInt(size.height);
+        // bit depth, color type, compression, filter, interlace
+        header.write(new byte[] { 8, COLOR_TYPE_RGB, 0, 0, 0 });
+        header.writeTo(file);
+        animationControlPosition = file.getFilePointer();
+        writeAnimationControl();
+    }
+
+    /**
+     * Write the animation control chunk, at the current position.
+     */
+    private void writeAnimationControl() throws IOException {
+        Chunk animationControl = new Chunk("acTL");
+        animationControl.writeInt(frameCount);
+        // Loop forever.
+        animationControl.writeInt(0);
+        animationControl.writeTo(file);
+    }
+
+    @Override
+    public void addFrame(BufferedImage frame, int duration) throws IOException {
+        // A frame longer than the largest delay is written several times.
+        do {
+            int delay = Math.min(duration, MAX_DELAY);
+            duration -= delay;
+            writeFrame(frame, delay);
+        } while (duration > 0);
+    }
+
+    private void writeFrame(BufferedImage frame, int delay) throws IOException {
+        Chunk frameControl = new Chunk("fcTL");
+        frameControl.writeInt(sequenceNumber++);
+        frameControl.writeInt(size.width);
+        frameControl.writeInt(size.height);
+        // x and y offsets
+        frameControl.writeInt(0);
+        frameControl.writeInt(0);
+        // delay numerator and denominator
+        frameControl.writeShort(delay);
+        frameControl.writeShort(1000);
+        // dispose none, blend source
+        frameControl.write(new byte[] { 0, 0 });
+        frameControl.writeTo(file);
+
+        // The first frame is the default image of the PNG.
+        Chunk data = new Chunk(frameCount == 0 ? "IDAT" : "fdAT");
+        if (frameCount > 0)
+            data.writeInt(sequenceNumber++);
+        byte[] compressedImage = compressedImages.get(frame);
+        if (compressedImage == null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            writeImageData(frame, os);
+            compressedImage = os.toByteArray();
+            compressedImages.put(frame, compressedImage);
+        }
+        data.write(compressedImage);
+        data.writeTo(file);
+        frameCount++;
+    }
+
+    /**
+     * Write the compressed rows of the image, with the "sub" filter, which
+     * stores the difference of each byte with the same byte of the pixel on
+     * its left.
+     */
+    private void writeImageData(BufferedImage frame, ByteArrayOutputStream os) throws IOException {
+        Deflater deflater = new Deflater();
+        DeflaterOutputStream deflaterOs = new DeflaterOutputStream(os, deflater, 65536);
+        int width = size.width;
+        int[] pixels = new int[width];
+        byte[] row = new byte[1 + width * 3];
+        row[0] = 1;
+        for (int y = 0; y < size.height; y++) {
+            frame.getRGB(0, y, width, 1, pixels, 0, width);
+            for (int x = 0, i = 1; x < width; x++) {
+                int pixel = pixels[x];
+                int previous = x == 0 ? 0 : pixels[x - 1];
+                row[i++] = (byte) ((pixel >> 16) - (previous >> 16));
+                row[i++] = (byte) ((pixel >> 8) - (previous >> 8));
+                row[i++] = (byte) (pixel - previous);
+            }
+            deflaterOs.write(row);
+        }
+        deflaterOs.finish();
+        deflater.end();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            new Chunk("IEND").writeTo(file);
+            file.seek(animationControlPosition);
+            writeAnimationControl();
+        } finally {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort() {
+        compressedImages.clear();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing more we can do.
+            }
+        }
+        file = null;
+    }
+
+    /**
+     * The type and data of a PNG chunk, written with its length and CRC.
+     */
+    private static class Chunk extends ByteArrayOutputStream {
+        private final String type;
+
+        Chunk(String type) {
+            this.type = type;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeTo(RandomAccessFile file) throws IOException {
+            byte[] typeBytes = type.getBytes("US-ASCII");
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(buf, 0, count);
+            file.writeInt(count);
+            file.write(typeBytes);
+            file.write(buf, 0, count);
+            file.writeInt((int) crc.getValue());
+        }
+    }
+}
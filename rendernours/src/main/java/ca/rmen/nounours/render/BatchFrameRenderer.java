@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
+
+/**
+ * Renders all the frames of an animation, at several output sizes, without
+ * displaying anything and without waiting for the animation interval. Images
+ * are decoded, scaled and written in parallel on a fork/join pool, so the
+ * rendering is only limited by the decode, scale and encode throughput.
+ *
+ * Each image is scaled to fit in the output size, and centered, as it is
+ * displayed by the Swing application.
+ *
+ * This works with java.awt.headless=true.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class BatchFrameRenderer {
+
+    private final ThemeImageReader imageReader;
+    private final ForkJoinPool pool;
+    private Color background = Color.BLACK;
+
+    /**
+     * @param themeFolder the folder relative to which the image file names are resolved.
+     * @param parallelism the number of threads which render frames.
+     */
+    public BatchFrameRenderer(File themeFolder, int parallelism) {
+        this.imageReader = new ThemeImageReader(themeFolder);
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Use all the available processors.
+     *
+     * @param themeFolder the folder relative to which the image file names are resolved.
+     */
+    public BatchFrameRenderer(File themeFolder) {
+        this(themeFolder, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param background the color around the image, if the output size doesn't
+     *            have the aspect ratio of the images.
+     */
+    public void setBackground(Color background) {
+        this.background = background;
+    }
+
+    /**
+     * Render each frame of the animation sequence, once for each of the given
+     * sizes, and pass the frames to the sink. This returns when all the frames
+     * have been passed to the sink.
+     *
+     * @param animation the animation to render.
+     * @param sizes the output sizes
+     * @param sink receives the rendered frames
+     * @throws IOException if an image could not be read, or if the sink could
+     *             not write a frame.
+     */
+    public void render(final Animation animation, final List<Dimension> sizes, final FrameSink sink)
+            throws IOException {
+        long before = System.currentTimeMillis();
+        final List<AnimationImage> frames = animation.getImages();
+
+        // Decode each distinct image once.
+        Map<String, Image> images = new LinkedHashMap<String, Image>();
+        for (AnimationImage frame : frames)
+            images.put(frame.getImage().getId(), frame.getImage());
+        final Map<String, BufferedImage> decodedImages = new ConcurrentHashMap<String, BufferedImage>();
+        List<RecursiveAction> decodeTasks = new ArrayList<RecursiveAction>();
+        for (final Image image : images.values()) {
+            decodeTasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        decodedImages.put(image.getId(), imageReader.read(image));
+                    } catch (IOException e) {
+                        throw new RenderException(e);
+                    }
+                }
+            });
+        }
+        runAll(decodeTasks);
+
+        // Scale and write each frame at each size.
+        List<RecursiveAction> renderTasks = new ArrayList<RecursiveAction>();
+        for (int i = 0; i < frames.size(); i++) {
+            final int frameIndex = i;
+            final BufferedImage decodedImage = decodedImages.get(frames.get(i).getImage().getId());
+            for (final Dimension size : sizes) {
+                renderTasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        try {
+                            sink.writeFrame(animation, frameIndex, size, scale(decodedImage, size, background));
+                        } catch (IOException e) {
+                            throw new RenderException(e);
+                        }
+                    }
+                });
+            }
+        }
+        runAll(renderTasks);
+        System.out.println(getClass().getName() + ": Rendered " + renderTasks.size() + " frames of "
+                + animation.getId() + " from " + decodedImages.size() + " images in "
+                + (System.currentTimeMillis() - before) + "ms");
+    }
+
+    /**
+     * Stop the rendering threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Run the given tasks in the pool and wait for them to finish.
+     */
+    private void runAll(final Collection<RecursiveAction> tasks) throws IOException {
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (RenderException e) {
+            // The pool may rethrow a copy of the exception thrown by the task.
+            Throwable cause = e.getCause();
+            while (cause instanceof RenderException)
+                cause = cause.getCause();
+            throw (IOException) cause;
+        }
+    }
+
+    /**
+     * @return a new image of the given size, with the given image scaled to
+     *         fit in it, and centered.
+     */
+    static BufferedImage scale(BufferedImage image, Dimension size, Color background) {
+        float widthRatio = (float) size.width / image.getWidth();
+        float heightRatio = (float) size.height / image.getHeight();
+        float ratioToUse = widthRatio > heightRatio ? heightRatio : widthRatio;
+        int imageWidth = (int) (image.getWidth() * ratioToUse);
+        int imageHeight = (int) (image.getHeight() * ratioToUse);
+        int offsetX = (size.width - imageWidth) / 2;
+        int offsetY = (size.height - imageHeight) / 2;
+
+        BufferedImage result = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setColor(background);
+            g.fillRect(0, 0, size.width, size.height);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, offsetX, offsetY, imageWidth, imageHeight, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * Carries an IOException out of a fork/join task.
+     */
+    private static class RenderException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RenderException(IOException cause) {
+            super(cause);
+        }
+    }
+}
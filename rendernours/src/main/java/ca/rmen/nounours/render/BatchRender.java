@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.Theme;
+import ca.rmen.nounours.io.DefaultStreamLoader;
+
+/**
+ * Command-line program which renders the animations of a theme to image
+ * files. Usage:
+ * <code>
+ * BatchRender &lt;theme folder&gt; &lt;output folder&gt; &lt;animation id|all&gt; &lt;width&gt;x&lt;height&gt; [&lt;width&gt;x&lt;height&gt; ...]
+ * </code>
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class BatchRender {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: BatchRender <theme folder> <output folder> <animation id|all> <width>x<height> [<width>x<height> ...]");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        File themeFolder = new File(args[0]).getAbsoluteFile();
+        File outputFolder = new File(args[1]);
+        String animationId = args[2];
+        List<Dimension> sizes = new ArrayList<Dimension>();
+        for (int i = 3; i < args.length; i++) {
+            String[] size = args[i].split("x");
+            sizes.add(new Dimension(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+        }
+
+        Theme theme = new Theme("batch", themeFolder.getName(), themeFolder.toURI());
+        theme.init(new DefaultStreamLoader());
+        Collection<Animation> animations;
+        if (animationId.equals("all"))
+            animations = theme.getAnimations().values();
+        else
+            animations = Collections.singletonList(theme.getAnimations().get(animationId));
+
+        BatchFrameRenderer renderer = new BatchFrameRenderer(themeFolder);
+        FrameSink sink = new ImageFileFrameSink(outputFolder, "png");
+        try {
+            for (Animation animation : animations) {
+                if (animation == null) {
+                    System.err.println("Unknown animation " + animationId);
+                    continue;
+                }
+                renderer.render(animation, sizes, sink);
+            }
+        } finally {
+            renderer.shutdown();
+        }
+    }
+}
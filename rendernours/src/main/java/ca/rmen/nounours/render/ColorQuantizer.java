@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reduces an image to at most 256 colors with the median cut algorithm, on a
+ * histogram of the colors at 5 bits per component. Each pixel is mapped to
+ * the palette through a lookup table on its 15-bit color, without dithering.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class ColorQuantizer {
+
+    private static final int MAX_COLORS = 256;
+    private static final int LEVELS = 32;
+
+    private ColorQuantizer() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return an indexed copy of the image, with a palette of at most 256
+     *         colors.
+     */
+    static BufferedImage quantize(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] histogram = new int[LEVELS * LEVELS * LEVELS];
+        for (int pixel : pixels)
+            histogram[toCell(pixel)]++;
+
+        // Split the boxes until we have enough colors.
+        List<Box> boxes = new ArrayList<Box>();
+        boxes.add(new Box(histogram, 0, LEVELS - 1, 0, LEVELS - 1, 0, LEVELS - 1));
+        while (boxes.size() < MAX_COLORS) {
+            Box largest = null;
+            for (Box box : boxes) {
+                if (box.isSplittable() && (largest == null || box.count > largest.count))
+                    largest = box;
+            }
+            if (largest == null)
+                break;
+            boxes.remove(largest);
+            Box[] halves = largest.split(histogram);
+            boxes.add(halves[0]);
+            boxes.add(halves[1]);
+        }
+
+        // The palette is the average color of each box.
+        byte[] reds = new byte[boxes.size()];
+        byte[] greens = new byte[boxes.size()];
+        byte[] blues = new byte[boxes.size()];
+        byte[] cellColors = new byte[histogram.length];
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            long red = 0, green = 0, blue = 0, count = 0;
+            for (int r = box.r0; r <= box.r1; r++) {
+                for (int g = box.g0; g <= box.g1; g++) {
+                    for (int b = box.b0; b <= box.b1; b++) {
+                        int cell = (r * LEVELS + g) * LEVELS + b;
+                        int cellCount = histogram[cell];
+                        red += cellCount * r;
+                        green += cellCount * g;
+                        blue += cellCount * b;
+                        count += cellCount;
+                        cellColors[cell] = (byte) i;
+                    }
+                }
+            }
+            if (count > 0) {
+                reds[i] = toComponent(red, count);
+                greens[i] = toComponent(green, count);
+                blues[i] = toComponent(blue, count);
+            }
+        }
+
+        IndexColorModel colorModel = new IndexColorModel(8, boxes.size(), reds, greens, blues);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        WritableRaster raster = result.getRaster();
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                row[x] = cellColors[toCell(pixels[y * width + x])];
+            raster.setDataElements(0, y, width, 1, row);
+        }
+        return result;
+    }
+
+    private static int toCell(int rgb) {
+        return ((rgb >> 9) & 0x7c00) | ((rgb >> 6) & 0x3e0) | ((rgb >> 3) & 0x1f);
+    }
+
+    /**
+     * @return the 8-bit value of the average of 5-bit levels.
+     */
+    private static byte toComponent(long sum, long count) {
+        return (byte) ((sum * 255 + count * (LEVELS - 1) / 2) / (count * (LEVELS - 1)));
+    }
+
+    /**
+     * A box of the color space, shrunk to the colors it contains.
+     */
+    private static class Box {
+        private int r0, r1, g0, g1, b0, b1;
+        private int count;
+
+        Box(int[] histogram, int r0, int r1, int g0, int g1, int b0, int b1) {
+            // Shrink the box to the cells which contain pixels.
+            int minR = r1, maxR = r0, minG = g1, maxG = g0, minB = b1, maxB = b0;
+            for (int r = r0; r <= r1; r++) {
+                for (int g = g0; g <= g1; g++) {
+                    for (int b = b0; b <= b1; b++) {
+                        int cellCount = histogram[(r * LEVELS + g) * LEVELS + b];
+                        if (cellCount == 0)
+                            continue;
+                        count += cellCount;
+                        minR = Math.min(minR, r);
+                        maxR = Math.max(maxR, r);
+                        minG = Math.min(minG, g);
+                        maxG = Math.max(maxG, g);
+                        minB = Math.min(minB, b);
+                        maxB = Math.max(maxB, b);
+                    }
+                }
+            }
+            if (count == 0) {
+                this.r0 = r0;
+                this.r1 = r0;
+                this.g0 = g0;
+                this.g1 = g0;
+                this.b0 = b0;
+                this.b1 = b0;
+            } else {
+                this.r0 = minR;
+                this.r1 = maxR;
+                this.g0 = minG;
+                this.g1 = maxG;
+                this.b0 = minB;
+                this.b1 = maxB;
+            }
+        }
+
+        boolean isSplittable() {
+            return r1 > r0 || g1 > g0 || b1 > b0;
+        }
+
+        /**
+         * @return two boxes, splitting this box along its longest side at the
+         *         median pixel.
+         */
+        Box[] split(int[] histogram) {
+            int rSize = r1 - r0, gSize = g1 - g0, bSize = b1 - b0;
+            int axis = rSize >= gSize && rSize >= bSize ? 0 : gSize >= bSize ? 1 : 2;
+            int low = axis == 0 ? r0 : axis == 1 ? g0 : b0;
+            int high = axis == 0 ? r1 : axis == 1 ? g1 : b1;
+            // The number of pixels in each slice of the box along the axis.
+            int[] slices = new int[high - low + 1];
+            for (int r = r0; r <= r1; r++) {
+                for (int g = g0; g <= g1; g++) {
+                    for (int b = b0; b <= b1; b++) {
+                        int level = axis == 0 ? r : axis == 1 ? g : b;
+                        slices[level - low] += histogram[(r * LEVELS + g) * LEVELS + b];
+                    }
+                }
+            }
+            // The last level of the lower half. It leaves at least one level
+            // in the upper half.
+            int median = low;
+            int sum = slices[0];
+            while (median < high - 1 && sum < count / 2) {
+                median++;
+                sum += slices[median - low];
+            }
+            if (axis == 0)
+                return new Box[] { new Box(histogram, r0, median, g0, g1, b0, b1),
+                        new Box(histogram, median + 1, r1, g0, g1, b0, b1) };
+            if (axis == 1)
+                return new Box[] { new Box(histogram, r0, r1, g0, median, b0, b1),
+                        new Box(histogram, r0, r1, median + 1, g1, b0, b1) };
+            return new Box[] { new Box(histogram, r0, r1, g0, g1, b0, median),
+                    new Box(histogram, r0, r1, g0, g1, median + 1, b1) };
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+/**
+ * Follows the progress of an export by the {@link AnimationExporter}.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface ExportProgressListener {
+
+    /**
+     * Called from the thread of the encoder, after each frame is written. This
+     * is never called from the UI thread: UI implementations must post the
+     * progress to their UI thread.
+     *
+     * @param exportedFrames the number of frames of the animation written so far.
+     * @param frameCount the number of frames of the animation.
+     */
+    public void onProgress(int exportedFrames, int frameCount);
+
+    /**
+     * Called from the export thread, once the file is complete, before the
+     * future of the export is done.
+     *
+     * @param encodedFrames the number of frames in the file, after merging consecutive frames of the same image.
+     * @param imageCount the number of distinct images in the file.
+     * @param durationMillis how long the export took.
+     */
+    public void onFinished(int encodedFrames, int imageCount, long durationMillis);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import ca.rmen.nounours.data.Animation;
+
+/**
+ * Implementing classes receive the frames rendered by the
+ * {@link BatchFrameRenderer}.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface FrameSink {
+
+    /**
+     * Called once for each frame of the animation, and each output size.
+     * Frames are rendered in parallel, so this is called concurrently from
+     * several threads, in no particular order.
+     *
+     * @param animation the animation being rendered
+     * @param frameIndex the position of the frame in the animation sequence.
+     * @param size the output size
+     * @param frame the rendered frame, of the given size.
+     * @throws IOException if the frame could not be written.
+     */
+    public void writeFrame(Animation animation, int frameIndex, Dimension size, BufferedImage frame)
+            throws IOException;
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes an animated GIF which loops forever, with the GIF writer of ImageIO.
+ * Each frame has its own palette. GIF delays are in hundredths of a second:
+ * the delays are rounded so that the total time doesn't drift, and frames
+ * which round to no time at all are dropped.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class GifAnimationEncoder implements AnimationEncoder {
+
+    private static final String METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private ImageWriter writer;
+    private ImageOutputStream os;
+    private boolean isFirstFrame;
+    // The time at the end of the frames written so far, in ms and in
+    // hundredths of a second.
+    private long time;
+    private long gifTime;
+
+    @Override
+    public boolean isIndexed() {
+        return true;
+    }
+
+    @Override
+    public void start(File output, Dimension size) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!writers.hasNext())
+            throw new IOException("No GIF writer");
+        writer = writers.next();
+        os = ImageIO.createImageOutputStream(output);
+        if (os == null)
+            throw new IOException("Could not write to " + output);
+        writer.setOutput(os);
+        writer.prepareWriteSequence(null);
+        isFirstFrame = true;
+        time = 0;
+        gifTime = 0;
+    }
+
+    @Override
+    public void addFrame(BufferedImage frame, int duration) throws IOException {
+        time += duration;
+        long frameEnd = (time + 5) / 10;
+        int delay = (int) (frameEnd - gifTime);
+        if (delay <= 0)
+            return;
+        gifTime = frameEnd;
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame),
+                param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+        IIOMetadataNode graphicControl = getChild(root, "GraphicControlExtension");
+        graphicControl.setAttribute("disposalMethod", "none");
+        graphicControl.setAttribute("userInputFlag", "FALSE");
+        graphicControl.setAttribute("transparentColorFlag", "FALSE");
+        graphicControl.setAttribute("transparentColorIndex", "0");
+        graphicControl.setAttribute("delayTime", String.valueOf(Math.min(delay, 0xffff)));
+        if (isFirstFrame) {
+            // Loop forever.
+            IIOMetadataNode application = new IIOMetadataNode("ApplicationExtension");
+            application.setAttribute("applicationID", "NETSCAPE");
+            application.setAttribute("authenticationCode", "2.0");
+            application.setUserObject(new byte[] { 1, 0, 0 });
+            getChild(root, "ApplicationExtensions").appendChild(application);
+            isFirstFrame = false;
+        }
+        metadata.setFromTree(METADATA_FORMAT, root);
+        writer.writeToSequence(new IIOImage(frame, null, metadata), param);
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name))
+                return (IIOMetadataNode) parent.item(i);
+        }
+        IIOMetadataNode child = new IIOMetadataNode(name);
+        parent.appendChild(child);
+        return child;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            writer.endWriteSequence();
+        } finally {
+            abort();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (writer != null)
+            writer.dispose();
+        writer = null;
+        if (os != null) {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // Nothing more we can do.
+            }
+        }
+        os = null;
+    }
+}
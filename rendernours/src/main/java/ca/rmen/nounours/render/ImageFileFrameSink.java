@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import ca.rmen.nounours.data.Animation;
+
+/**
+ * Writes each frame to an image file. The frames of an animation at a given
+ * size are written to the folder
+ * <code>&lt;outputFolder&gt;/&lt;animation id&gt;/&lt;width&gt;x&lt;height&gt;/</code>
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ImageFileFrameSink implements FrameSink {
+
+    private final File outputFolder;
+    private final String formatName;
+
+    /**
+     * @param outputFolder the root folder of the image files.
+     * @param formatName an ImageIO format name, for example "png" or "jpg".
+     */
+    public ImageFileFrameSink(File outputFolder, String formatName) {
+        this.outputFolder = outputFolder;
+        this.formatName = formatName;
+    }
+
+    @Override
+    public void writeFrame(Animation animation, int frameIndex, Dimension size, BufferedImage frame)
+            throws IOException {
+        File folder = new File(new File(outputFolder, animation.getId()), size.width + "x" + size.height);
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+            throw new IOException("Could not create folder " + folder);
+        File file = new File(folder, String.format("frame-%04d.%s", frameIndex, formatName));
+        if (!ImageIO.write(frame, formatName, file))
+            throw new IOException("No image writer for " + formatName);
+    }
+}
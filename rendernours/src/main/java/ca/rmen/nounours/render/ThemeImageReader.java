@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.render;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageLayer;
+
+/**
+ * Reads the images of a theme from their files, compositing the layers of
+ * layered images. This is thread-safe.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class ThemeImageReader {
+
+    private final File themeFolder;
+
+    /**
+     * @param themeFolder the folder relative to which the image file names are resolved.
+     */
+    ThemeImageReader(File themeFolder) {
+        this.themeFolder = themeFolder;
+    }
+
+    /**
+     * @return the decoded image
+     * @throws IOException if the image, or one of its layers, could not be read.
+     */
+    BufferedImage read(Image image) throws IOException {
+        if (!image.getLayers().isEmpty())
+            return composite(image);
+        return read(image.getFilename());
+    }
+
+    private BufferedImage read(String filename) throws IOException {
+        File file = new File(filename);
+        if (!file.isAbsolute())
+            file = new File(themeFolder, filename);
+        BufferedImage result = ImageIO.read(file);
+        if (result == null)
+            throw new IOException("Could not decode " + file);
+        return result;
+    }
+
+    /**
+     * @return an image containing the layers of the given image, just large
+     *         enough to contain all the layers.
+     */
+    private BufferedImage composite(Image image) throws IOException {
+        List<BufferedImage> layerImages = new ArrayList<BufferedImage>();
+        int width = 0;
+        int height = 0;
+        for (ImageLayer layer : image.getLayers()) {
+            BufferedImage layerImage = read(layer.getFilename());
+            layerImages.add(layerImage);
+            width = Math.max(width, layer.getX() + layerImage.getWidth());
+            height = Math.max(height, layer.getY() + layerImage.getHeight());
+        }
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            for (int i = 0; i < layerImages.size(); i++) {
+                ImageLayer layer = image.getLayers().get(i);
+                g.drawImage(layerImages.get(i), layer.getX(), layer.getY(), null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Canvas;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Displays an image with active rendering: instead of letting AWT decide when
+ * to paint, a dedicated render thread draws each new image into a
+ * BufferStrategy and flips the pages as soon as the image is handed over.
+ *
+ * Images are handed over to the render thread through a single slot: if
+ * several images are set before the render thread picks them up, only the
+ * latest one is displayed.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class ActiveRenderingCanvas extends Canvas implements ICachedImageComponent {
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+    private static final int STATS_FRAME_COUNT = 100;
+    // How long removeNotify waits for the render thread to finish its frame.
+    private static final long RENDER_THREAD_STOP_TIMEOUT_MS = 100;
+
+    // The image waiting to be displayed by the render thread.
+    private final AtomicReference<BufferedImage> pendingImage = new AtomicReference<BufferedImage>();
+    private final AtomicBoolean redrawRequested = new AtomicBoolean(false);
+    // The last image which was set, for getImageWidth/Height.
+    private volatile BufferedImage latestImage = null;
+    private volatile Thread renderThread = null;
+    private volatile ImageReleaseListener imageReleaseListener = null;
+    private final RenderQualityController renderQualityController = new RenderQualityController(new Runnable() {
+        public void run() {
+            repaint();
+        }
+    });
+
+    // Only accessed by the render thread.
+    private BufferedImage displayedImage = null;
+    private long lastPresentTime = 0;
+    private long minPresentInterval = Long.MAX_VALUE;
+    private long maxPresentInterval = 0;
+    private long totalPresentInterval = 0;
+    private int presentIntervalCount = 0;
+
+    public ActiveRenderingCanvas() {
+        setIgnoreRepaint(true);
+    }
+
+    /**
+     * Create the page flipping buffers and start the render thread, once we
+     * are displayable.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        createBufferStrategy(2);
+        renderThread = new Thread(new Runnable() {
+            public void run() {
+                render();
+            }
+        }, "nounours-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    /**
+     * Stop the render thread before the peer is destroyed. This is called on
+     * the event dispatch thread with the AWT tree lock held, which the render
+     * thread may need to finish its frame, so we only wait for it briefly. A
+     * frame presented after the peer is gone fails, and the thread stops.
+     */
+    @Override
+    public void removeNotify() {
+        Thread thread = renderThread;
+        renderThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(RENDER_THREAD_STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.removeNotify();
+    }
+
+    /**
+     * Hand over the image to the render thread.
+     */
+    @Override
+    public void setImage(BufferedImage image) {
+        latestImage = image;
+        BufferedImage skippedImage = pendingImage.getAndSet(image);
+        // The render thread never took the image which was waiting.
+        if (skippedImage != image)
+            releaseImage(skippedImage);
+        wakeUpRenderThread();
+    }
+
+    @Override
+    public void setImageReleaseListener(ImageReleaseListener listener) {
+        imageReleaseListener = listener;
+    }
+
+    /**
+     * Ask the render thread to draw the current image again.
+     */
+    @Override
+    public void repaint() {
+        redrawRequested.set(true);
+        wakeUpRenderThread();
+    }
+
+    /**
+     * We flip whole pages, so this redraws the whole image.
+     */
+    @Override
+    public void repaintImageRegion(Rectangle imageRegion) {
+        repaint();
+    }
+
+    /**
+     * Called by AWT when our area has been damaged.
+     */
+    @Override
+    public void paint(Graphics g) {
+        repaint();
+    }
+
+    @Override
+    public void update(Graphics g) {
+        repaint();
+    }
+
+    /**
+     * Draw with fast scaling, if quality scaling is too slow, until the
+     * interaction stops.
+     */
+    @Override
+    public void onInteraction() {
+        renderQualityController.onInteraction();
+    }
+
+    public int getImageWidth() {
+        BufferedImage image = latestImage;
+        return image == null ? 0 : image.getWidth();
+    }
+
+    public int getImageHeight() {
+        BufferedImage image = latestImage;
+        return image == null ? 0 : image.getHeight();
+    }
+
+    private void releaseImage(BufferedImage image) {
+        ImageReleaseListener listener = imageReleaseListener;
+        if (image != null && listener != null)
+            listener.onImageReleased(image);
+    }
+
+    private void wakeUpRenderThread() {
+        Thread thread = renderThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * The loop of the render thread: wait for an image or a redraw request,
+     * and present it.
+     */
+    private void render() {
+        Trace.debug(this, "Render thread started");
+        while (renderThread == Thread.currentThread()) {
+            BufferedImage image = pendingImage.getAndSet(null);
+            boolean redraw = redrawRequested.getAndSet(false);
+            if (image == null && !redraw) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (image != null) {
+                if (displayedImage != image)
+                    releaseImage(displayedImage);
+                displayedImage = image;
+            }
+            try {
+                present();
+            } catch (IllegalStateException e) {
+                // The component is no longer displayable.
+                Trace.debug(this, e.getMessage());
+            }
+        }
+        Trace.debug(this, "Render thread stopped");
+    }
+
+    /**
+     * Draw the current image in the back buffer and flip it to the screen.
+     */
+    private void present() {
+        BufferStrategy bufferStrategy = getBufferStrategy();
+        if (bufferStrategy == null)
+            return;
+        do {
+            do {
+                Graphics g = bufferStrategy.getDrawGraphics();
+                try {
+                    draw(g);
+                } finally {
+                    g.dispose();
+                }
+            } while (bufferStrategy.contentsRestored());
+            bufferStrategy.show();
+        } while (bufferStrategy.contentsLost());
+        // Flush the pipeline so the frame is on screen now.
+        Toolkit.getDefaultToolkit().sync();
+        updatePresentStats();
+    }
+
+    private void draw(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+        if (displayedImage != null) {
+            Rectangle imageBounds = CachedImageComponent.getImageBounds(width, height, displayedImage);
+            boolean highQuality = renderQualityController.isHighQuality();
+            renderQualityController.applyHints((Graphics2D) g, highQuality);
+            long before = System.nanoTime();
+            g.drawImage(displayedImage, imageBounds.x, imageBounds.y, imageBounds.width, imageBounds.height, null);
+            renderQualityController.onFrameDrawn(highQuality, System.nanoTime() - before);
+        }
+    }
+
+    /**
+     * Keep track of the interval between two presented frames, and log it
+     * every STATS_FRAME_COUNT frames.
+     */
+    private void updatePresentStats() {
+        long now = System.nanoTime();
+        if (lastPresentTime > 0) {
+            long interval = now - lastPresentTime;
+            if (interval < minPresentInterval)
+                minPresentInterval = interval;
+            if (interval > maxPresentInterval)
+                maxPresentInterval = interval;
+            totalPresentInterval += interval;
+            presentIntervalCount++;
+            if (presentIntervalCount == STATS_FRAME_COUNT) {
+                Trace.debug(this, "Present-to-present interval over " + presentIntervalCount + " frames: min "
+                        + minPresentInterval / 1000 + "us, average " + totalPresentInterval / presentIntervalCount
+                        / 1000 + "us, max " + maxPresentInterval / 1000 + "us");
+                minPresentInterval = Long.MAX_VALUE;
+                maxPresentInterval = 0;
+                totalPresentInterval = 0;
+                presentIntervalCount = 0;
+            }
+        }
+        lastPresentTime = now;
+    }
+}
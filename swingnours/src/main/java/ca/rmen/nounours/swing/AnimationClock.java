@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import ca.rmen.nounours.NounoursClock;
+
+/**
+ * The clock which gives the frame deadlines of an animation. If the
+ * animation has a sound, the time is the playback position of the sound, so
+ * that frames stay in sync with the audio, even if the audio device's clock
+ * drifts from the system clock. Otherwise, and whenever the sound isn't
+ * playing, the time comes from the clock of the nounours, continuing from the
+ * last audio position.
+ *
+ * Until the sound starts, the clock stays at 0, so the first frame is shown
+ * until the sound is heard, for at most {@link #MAX_AUDIO_START_WAIT_US}.
+ *
+ * The clock also measures the A/V skew: how late each frame is shown
+ * compared to its deadline, on the audio clock.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class AnimationClock {
+
+    static final long MAX_AUDIO_START_WAIT_US = 200000;
+
+    private final NounoursClock clock;
+    private final SwingNounoursSoundHandler soundHandler;
+    private final String soundId;
+    private final long startNanos;
+    private boolean isWaitingForAudio;
+    // The system time minus the audio time.
+    private long audioOffsetUs = 0;
+    private long firstAudioOffsetUs = 0;
+    private long lastTimeUs = 0;
+    private boolean isOnAudioClock = false;
+
+    private int frameCount = 0;
+    private int audioFrameCount = 0;
+    private long totalSkewUs = 0;
+    private long maxSkewUs = 0;
+
+    /**
+     * @param clock
+     *            the clock of the nounours.
+     * @param soundHandler
+     *            gives the position of the sound. May be null if soundId is
+     *            null.
+     * @param soundId
+     *            the sound of the animation, or null if it has none.
+     */
+    AnimationClock(NounoursClock clock, SwingNounoursSoundHandler soundHandler, String soundId) {
+        this.clock = clock;
+        this.startNanos = clock.nanoTime();
+        this.soundHandler = soundHandler;
+        this.soundId = soundHandler == null ? null : soundId;
+        this.isWaitingForAudio = this.soundId != null;
+    }
+
+    /**
+     * @return the time since the start of the animation, in microseconds. This
+     *         never goes backwards.
+     */
+    long getTimeUs() {
+        long systemTimeUs = (clock.nanoTime() - startNanos) / 1000;
+        long timeUs;
+        long audioTimeUs = soundId == null ? -1 : soundHandler.getPlaybackPosition(soundId);
+        isOnAudioClock = audioTimeUs >= 0;
+        if (audioTimeUs >= 0) {
+            if (isWaitingForAudio) {
+                isWaitingForAudio = false;
+                firstAudioOffsetUs = systemTimeUs - audioTimeUs;
+                Trace.debug(this, "Sound " + soundId + " started " + firstAudioOffsetUs / 1000
+                        + "ms after the animation");
+            }
+            audioOffsetUs = systemTimeUs - audioTimeUs;
+            timeUs = audioTimeUs;
+        } else if (isWaitingForAudio) {
+            if (systemTimeUs < MAX_AUDIO_START_WAIT_US) {
+                audioOffsetUs = systemTimeUs;
+                return 0;
+            }
+            Trace.debug(this, "Sound " + soundId + " didn't start, using the system clock");
+            isWaitingForAudio = false;
+            timeUs = systemTimeUs - audioOffsetUs;
+        } else {
+            timeUs = systemTimeUs - audioOffsetUs;
+        }
+        lastTimeUs = Math.max(lastTimeUs, timeUs);
+        return lastTimeUs;
+    }
+
+    /**
+     * @param timeUs
+     *            a time returned by {@link #getTimeUs()}
+     * @return the time to wait, in milliseconds, until the clock reaches the
+     *         given time, or 0 if it has. This is at least 1ms if the clock
+     *         hasn't reached the time, since the audio position only moves by
+     *         whole buffers.
+     */
+    long getDelayMillis(long timeUs) {
+        long remainingUs = timeUs - getTimeUs();
+        if (remainingUs <= 0)
+            return 0;
+        return Math.max(1, remainingUs / 1000);
+    }
+
+    /**
+     * Measure the skew of a frame which was just shown.
+     *
+     * @param deadlineUs
+     *            the time at which the frame should have been shown.
+     */
+    void onFrameShown(long deadlineUs) {
+        long skewUs = getTimeUs() - deadlineUs;
+        frameCount++;
+        if (isOnAudioClock)
+            audioFrameCount++;
+        totalSkewUs += skewUs;
+        maxSkewUs = Math.max(maxSkewUs, skewUs);
+    }
+
+    /**
+     * Log the skew measured for the animation.
+     */
+    void report(String animationId) {
+        if (frameCount == 0)
+            return;
+        StringBuilder report = new StringBuilder();
+        report.append(animationId).append(": ").append(frameCount).append(" frames, mean skew ")
+                .append(totalSkewUs / frameCount / 1000).append("ms, max skew ").append(maxSkewUs / 1000)
+                .append("ms");
+        if (soundId != null) {
+            report.append(", ").append(audioFrameCount).append(" frames on the audio clock, audio start ")
+                    .append(firstAudioOffsetUs / 1000).append("ms, audio drift ")
+                    .append((audioOffsetUs - firstAudioOffsetUs) / 1000).append("ms");
+        }
+        Trace.debug(this, report);
+    }
+}
@@ -19,7 +19,11 @@
 package ca.rmen.nounours.swing;
 
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 
 import javax.swing.JPanel;
 
@@ -34,7 +38,39 @@ public class CachedImageComponent extends JPanel implements ICachedImageComponen
      *
      */
     private static final long serialVersionUID = 1L;
-    BufferedImage cachedImage = null;
+    // Set by the animation threads, read by the event dispatch thread.
+    volatile BufferedImage cachedImage = null;
+    // Incremented each time an image is set: the same image may be set again
+    // with other content.
+    private volatile int imageVersion = 0;
+    // The image being painted, guarded by imageLock.
+    private BufferedImage paintedImage = null;
+    private final Object imageLock = new Object();
+    private volatile ImageReleaseListener imageReleaseListener = null;
+    private final boolean useVolatileImage;
+    private VolatileImage volatileImage = null;
+    private int volatileImageVersion = -1;
+    // True if the image in video memory was scaled with quality scaling.
+    private boolean isVolatileImageHighQuality = false;
+    private final RenderQualityController renderQualityController = new RenderQualityController(new Runnable() {
+        public void run() {
+            repaint();
+        }
+    });
+
+    public CachedImageComponent() {
+        this(false);
+    }
+
+    /**
+     * @param useVolatileImage
+     *            if true, the current image is kept, already scaled, in video
+     *            memory. The image is restored if the video memory content is
+     *            lost.
+     */
+    public CachedImageComponent(boolean useVolatileImage) {
+        this.useVolatileImage = useVolatileImage;
+    }
 
     /**
      * Set the image to draw;
@@ -42,7 +78,20 @@ public class CachedImageComponent extends JPanel implements ICachedImageComponen
      * @param image
      */
     public void setImage(BufferedImage image) {
-        cachedImage = image;
+        BufferedImage previousImage;
+        synchronized (imageLock) {
+            previousImage = cachedImage;
+            cachedImage = image;
+            imageVersion++;
+            // If the previous image is being painted, paint releases it.
+            if (previousImage == image || previousImage == paintedImage)
+                previousImage = null;
+        }
+        releaseImage(previousImage);
+    }
+
+    public void setImageReleaseListener(ImageReleaseListener listener) {
+        imageReleaseListener = listener;
     }
 
 /**
@@ -50,31 +99,151 @@ public class CachedImageComponent extends JPanel implements ICachedImageComponen
      * @see javax.swing.JComponent#paint(java.awt.Graphics)
      */
     public void paint(Graphics g) {
-        if (cachedImage != null) {
-            float widthRatio = (float) getWidth() / cachedImage.getWidth();
-            float heightRatio = (float) getHeight() / cachedImage.getHeight();
-            float ratioToUse = widthRatio > heightRatio ? heightRatio : widthRatio;
-            int offsetX = 0;
-            int offsetY = 0;
-            int imageWidth = (int) (cachedImage.getWidth() * ratioToUse);
-            int imageHeight = (int) (cachedImage.getHeight() * ratioToUse);
-            if (heightRatio > widthRatio)
-                offsetY = (getHeight() - imageHeight) / 2;
-            else
-                offsetX = (getWidth() - imageWidth) / 2;
+        BufferedImage cachedImage;
+        int cachedImageVersion;
+        synchronized (imageLock) {
+            cachedImage = this.cachedImage;
+            cachedImageVersion = imageVersion;
+            paintedImage = cachedImage;
+        }
+        try {
+            paintImage(g, cachedImage, cachedImageVersion);
+        } finally {
+            synchronized (imageLock) {
+                paintedImage = null;
+                if (cachedImage == this.cachedImage)
+                    cachedImage = null;
+            }
+            releaseImage(cachedImage);
+        }
+    }
 
+    private void paintImage(Graphics g, BufferedImage cachedImage, int cachedImageVersion) {
+        if (cachedImage != null) {
+            Rectangle imageBounds = getImageBounds(getWidth(), getHeight(), cachedImage);
 //            System.out.println(getWidth() + "," + getHeight() + ":" + cachedImage.getWidth() + ","
-//                    + cachedImage.getHeight() + "=>" + offsetX+ "," + offsetY + "," + imageWidth + "," + imageHeight);
+//                    + cachedImage.getHeight() + "=>" + imageBounds);
+            boolean highQuality = renderQualityController.isHighQuality();
+            long before = System.nanoTime();
+            if (useVolatileImage && imageBounds.width > 0 && imageBounds.height > 0) {
+                paintVolatileImage(g, cachedImage, cachedImageVersion, imageBounds.x, imageBounds.y,
+                        imageBounds.width, imageBounds.height, highQuality);
+            } else {
+                renderQualityController.applyHints((Graphics2D) g, highQuality);
+                g.drawImage(cachedImage, imageBounds.x, imageBounds.y, imageBounds.width, imageBounds.height, null);
+            }
+            renderQualityController.onFrameDrawn(highQuality, System.nanoTime() - before);
+        }
+    }
+
+    /**
+     * Draw with fast scaling, if quality scaling is too slow, until the
+     * interaction stops.
+     */
+    public void onInteraction() {
+        renderQualityController.onInteraction();
+    }
+
+    /**
+     * Repaint only the part of the component where the given region of the
+     * image is displayed.
+     *
+     * @param imageRegion
+     *            a region in the coordinates of the image
+     */
+    public void repaintImageRegion(Rectangle imageRegion) {
+        BufferedImage image = cachedImage;
+        if (image == null) {
+            repaint();
+            return;
+        }
+        Rectangle imageBounds = getImageBounds(getWidth(), getHeight(), image);
+        float ratio = (float) imageBounds.width / image.getWidth();
+        // Add a pixel on each side, for the pixels which are interpolated when
+        // scaling.
+        int x = imageBounds.x + (int) Math.floor(imageRegion.x * ratio) - 1;
+        int y = imageBounds.y + (int) Math.floor(imageRegion.y * ratio) - 1;
+        int width = (int) Math.ceil(imageRegion.width * ratio) + 3;
+        int height = (int) Math.ceil(imageRegion.height * ratio) + 3;
+        repaint(x, y, width, height);
+    }
+
+    /**
+     * @return the area of a component of the given size where the given image
+     *         is drawn: the image is scaled to fit in the component, and
+     *         centered.
+     */
+    static Rectangle getImageBounds(int componentWidth, int componentHeight, BufferedImage image) {
+        float widthRatio = (float) componentWidth / image.getWidth();
+        float heightRatio = (float) componentHeight / image.getHeight();
+        float ratioToUse = widthRatio > heightRatio ? heightRatio : widthRatio;
+        int offsetX = 0;
+        int offsetY = 0;
+        int imageWidth = (int) (image.getWidth() * ratioToUse);
+        int imageHeight = (int) (image.getHeight() * ratioToUse);
+        if (heightRatio > widthRatio)
+            offsetY = (componentHeight - imageHeight) / 2;
+        else
+            offsetX = (componentWidth - imageWidth) / 2;
+        return new Rectangle(offsetX, offsetY, imageWidth, imageHeight);
+    }
+
+    /**
+     * Draw the current image from video memory. The scaled image is rendered
+     * into video memory if the image or the size changed, or if the content
+     * of the video memory was lost.
+     */
+    private void paintVolatileImage(Graphics g, BufferedImage cachedImage, int cachedImageVersion, int offsetX,
+            int offsetY, int imageWidth, int imageHeight, boolean highQuality) {
+        GraphicsConfiguration graphicsConfiguration = getGraphicsConfiguration();
+        if (graphicsConfiguration == null) {
+            renderQualityController.applyHints((Graphics2D) g, highQuality);
             g.drawImage(cachedImage, offsetX, offsetY, imageWidth, imageHeight, null);
+            return;
         }
+        do {
+            boolean render = volatileImageVersion != cachedImageVersion || isVolatileImageHighQuality != highQuality;
+            if (volatileImage == null || volatileImage.getWidth() != imageWidth
+                    || volatileImage.getHeight() != imageHeight) {
+                if (volatileImage != null)
+                    volatileImage.flush();
+                volatileImage = graphicsConfiguration.createCompatibleVolatileImage(imageWidth, imageHeight);
+                render = true;
+            }
+            int valid = volatileImage.validate(graphicsConfiguration);
+            if (valid == VolatileImage.IMAGE_INCOMPATIBLE) {
+                volatileImage.flush();
+                volatileImage = graphicsConfiguration.createCompatibleVolatileImage(imageWidth, imageHeight);
+                render = true;
+            } else if (valid == VolatileImage.IMAGE_RESTORED) {
+                render = true;
+            }
+            if (render) {
+                Graphics2D volatileGraphics = volatileImage.createGraphics();
+                renderQualityController.applyHints(volatileGraphics, highQuality);
+                volatileGraphics.drawImage(cachedImage, 0, 0, imageWidth, imageHeight, null);
+                volatileGraphics.dispose();
+                volatileImageVersion = cachedImageVersion;
+                isVolatileImageHighQuality = highQuality;
+            }
+            g.drawImage(volatileImage, offsetX, offsetY, null);
+        } while (volatileImage.contentsLost());
+    }
+
+    private void releaseImage(BufferedImage image) {
+        ImageReleaseListener listener = imageReleaseListener;
+        if (image != null && listener != null)
+            listener.onImageReleased(image);
     }
 
     public int getImageWidth() {
-        return cachedImage == null ? 0 : cachedImage.getWidth();
+        BufferedImage image = cachedImage;
+        return image == null ? 0 : image.getWidth();
     }
 
     public int getImageHeight() {
-        return cachedImage == null ? 0 : cachedImage.getHeight();
+        BufferedImage image = cachedImage;
+        return image == null ? 0 : image.getHeight();
     }
 
 }
\ No newline at end of file
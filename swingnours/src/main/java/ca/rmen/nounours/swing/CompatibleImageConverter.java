@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+/**
+ * Converts decoded images to the pixel format of the screen. ImageIO returns
+ * jpegs as TYPE_3BYTE_BGR images, which Java2D can only draw and scale through
+ * its slow general-purpose loops. Images in the screen's format can be drawn
+ * with the fast blit loops.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class CompatibleImageConverter {
+
+    private final GraphicsConfiguration graphicsConfiguration;
+    private long totalConversionTime = 0;
+    private int conversionCount = 0;
+
+    /**
+     * Convert images to the format of the default screen, or to TYPE_INT_RGB
+     * (TYPE_INT_ARGB for images with transparency) if we have no screen.
+     */
+    CompatibleImageConverter() {
+        if (GraphicsEnvironment.isHeadless())
+            graphicsConfiguration = null;
+        else
+            graphicsConfiguration = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration();
+    }
+
+    /**
+     * @param id
+     *            an identifier of the image, used for logging.
+     * @param image
+     *            a decoded image
+     * @return an image with the same content as the given image, in the format
+     *         of the screen. If the image is already in the format of the
+     *         screen, it is returned as is.
+     */
+    BufferedImage convert(String id, BufferedImage image) {
+        if (isCompatible(image))
+            return image;
+        long before = System.nanoTime();
+        BufferedImage result = createImage(image.getWidth(), image.getHeight(), image.getTransparency());
+        Graphics2D g = result.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        long conversionTime = System.nanoTime() - before;
+        totalConversionTime += conversionTime;
+        conversionCount++;
+        Trace.debug(this, "Converted " + id + " from type " + image.getType() + " to type " + result.getType()
+                + " in " + conversionTime / 1000 + "us (average " + totalConversionTime / conversionCount / 1000
+                + "us)");
+        return result;
+    }
+
+    /**
+     * @param transparency
+     *            one of the {@link Transparency} constants.
+     * @return a new image in the format of the screen.
+     */
+    BufferedImage createImage(int width, int height, int transparency) {
+        if (graphicsConfiguration == null)
+            return new BufferedImage(width, height, getHeadlessType(transparency));
+        return graphicsConfiguration.createCompatibleImage(width, height, transparency);
+    }
+
+    private static int getHeadlessType(int transparency) {
+        return transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+    }
+
+    /**
+     * @return true if the given image can be drawn without conversion.
+     */
+    private boolean isCompatible(BufferedImage image) {
+        if (graphicsConfiguration == null)
+            return image.getType() == getHeadlessType(image.getTransparency());
+        return image.getColorModel().equals(graphicsConfiguration.getColorModel(image.getTransparency()));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.NounoursAnimationHandler;
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+
+/**
+ * Displays the animations of one member of a crowd. Rather than using one
+ * thread per animation, each frame is scheduled on an executor shared by the
+ * whole crowd.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class CrowdAnimationHandler implements NounoursAnimationHandler {
+
+    private final Nounours nounours;
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> nextFrame = null;
+    private boolean isDoingAnimation = false;
+    // Incremented each time an animation starts or stops, so that frames of a
+    // previous animation which were already scheduled are ignored.
+    private int animationNumber = 0;
+
+    CrowdAnimationHandler(Nounours nounours, ScheduledExecutorService executor) {
+        this.nounours = nounours;
+        this.executor = executor;
+    }
+
+    /**
+     * Crowds have no animation menu.
+     */
+    @Override
+    public void addAnimation(Animation animation) {
+    }
+
+    @Override
+    public synchronized void doAnimation(Animation animation, boolean isDynamicAnimation) {
+        cancelNextFrame();
+        isDoingAnimation = true;
+        scheduleFrame(animation, isDynamicAnimation, ++animationNumber, 0, 0, 0);
+    }
+
+    @Override
+    public synchronized void stopAnimation() {
+        cancelNextFrame();
+        animationNumber++;
+        isDoingAnimation = false;
+    }
+
+    @Override
+    public synchronized boolean isAnimationRunning() {
+        return isDoingAnimation;
+    }
+
+    private void cancelNextFrame() {
+        if (nextFrame != null) {
+            nextFrame.cancel(false);
+            nextFrame = null;
+        }
+    }
+
+    /**
+     * Display the given frame of the animation after the given delay.
+     */
+    private synchronized void scheduleFrame(final Animation animation, final boolean isDynamicAnimation,
+            final int number, final int repeat, final int frame, long delay) {
+        if (number != animationNumber)
+            return;
+        nextFrame = executor.schedule(new Runnable() {
+            public void run() {
+                showFrame(animation, isDynamicAnimation, number, repeat, frame);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void showFrame(Animation animation, boolean isDynamicAnimation, int number, int repeat, int frame) {
+        List<AnimationImage> images = animation.getImages();
+        if (repeat >= animation.getRepeat() || images.isEmpty()) {
+            synchronized (this) {
+                if (number != animationNumber)
+                    return;
+                isDoingAnimation = false;
+                nextFrame = null;
+            }
+            if (!isDynamicAnimation)
+                nounours.reset();
+            return;
+        }
+        synchronized (this) {
+            if (number != animationNumber)
+                return;
+        }
+        AnimationImage image = images.get(frame);
+        nounours.setImage(image.getImage());
+        long delay = (long) (animation.getInterval() * image.getDuration());
+        if (frame + 1 < images.size())
+            scheduleFrame(animation, isDynamicAnimation, number, repeat, frame + 1, delay);
+        else
+            scheduleFrame(animation, isDynamicAnimation, number, repeat + 1, 0, delay);
+    }
+}
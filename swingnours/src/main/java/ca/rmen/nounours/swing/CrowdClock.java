@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ca.rmen.nounours.NounoursClock;
+
+/**
+ * The clock of the members of a crowd. It tells the system time, and runs the
+ * tasks of all the members, like their random motions, on the executor of the
+ * crowd, so that members don't start threads of their own. The executor logs
+ * the errors of the tasks.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class CrowdClock implements NounoursClock {
+
+    private final ScheduledExecutorService executor;
+
+    CrowdClock(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public Future<?> schedule(Runnable task, long delayMillis) {
+        return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+
+import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.NounoursSoundHandler;
+import ca.rmen.nounours.NounoursVibrateHandler;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+import ca.rmen.nounours.io.DefaultStreamLoader;
+
+/**
+ * Displays many Nounours characters, the members of the crowd, in one
+ * component. Each member has its own state, but the members share:
+ * <ul>
+ * <li>the decoded images: they are loaded once for each theme.</li>
+ * <li>the threads: animations, random motions, background tasks and idle
+ * checks of all members run on one small executor.</li>
+ * <li>the painting: all the members are drawn in one paint pass, each with
+ * its own transform.</li>
+ * </ul>
+ * Mouse events are sent to the member under the mouse, which is found with a
+ * grid index of the member bounds. Members don't play sounds.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public class CrowdComponent extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+    private static final String PROP_IDLE_PING_INTERVAL = "idle.ping.interval";
+    private static final int GRID_CELL_SIZE = 128;
+
+    private static final NounoursSoundHandler SILENT_SOUND_HANDLER = new NounoursSoundHandler() {
+        public void setEnableSound(boolean enableSound) {
+        }
+
+        public void playSound(String soundId) {
+        }
+
+        public void stopSound() {
+        }
+    };
+
+    private static final NounoursVibrateHandler NO_VIBRATE_HANDLER = new NounoursVibrateHandler() {
+        public void doVibrate(long duration) {
+        }
+
+        public void doVibrate(long duration, long interval) {
+        }
+    };
+
+    private final byte[] propertiesData;
+    private final byte[] themeData;
+    private final ScheduledExecutorService executor;
+    private final CrowdClock clock;
+    private final ThemeImageLoader imageLoader = new ThemeImageLoader(null, new FullImageDecoder());
+    // The members, in the order in which they are painted.
+    private final List<CrowdNounours> members = new CopyOnWriteArrayList<CrowdNounours>();
+    // Map of theme id to the images of that theme.
+    private final Map<String, Map<String, BufferedImage>> frames = new HashMap<String, Map<String, BufferedImage>>();
+    private volatile GridIndex<CrowdNounours> index = new GridIndex<CrowdNounours>(GRID_CELL_SIZE);
+    // Held to add a member to the index, or to replace the index.
+    private final Object indexLock = new Object();
+
+    /**
+     * @param propertiesFile
+     *            the properties used by all the members.
+     * @param themeFile
+     *            the list of themes.
+     * @throws IOException
+     *             if one of the files could not be read.
+     */
+    public CrowdComponent(InputStream propertiesFile, InputStream themeFile) throws IOException {
+        propertiesData = readBytes(propertiesFile);
+        themeData = readBytes(themeFile);
+        executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private int threadCount = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "crowd-" + threadCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) {
+            /**
+             * The future of a task keeps its error: log it, so that the
+             * tasks of the members needn't be wrapped.
+             */
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable) {
+                super.afterExecute(runnable, throwable);
+                if (!(runnable instanceof Future<?>) || !((Future<?>) runnable).isDone())
+                    return;
+                try {
+                    ((Future<?>) runnable).get();
+                } catch (ExecutionException e) {
+                    Trace.debug(CrowdComponent.this, e.getCause());
+                } catch (CancellationException e) {
+                    // The task was cancelled.
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        clock = new CrowdClock(executor);
+
+        // Check all the members for idleness.
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(propertiesData));
+        long pingInterval = Long.parseLong(properties.getProperty(PROP_IDLE_PING_INTERVAL, "5000"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (CrowdNounours member : members)
+                    member.ping();
+            }
+        }, pingInterval, pingInterval, TimeUnit.MILLISECONDS);
+
+        CrowdMouseAdapter mouseAdapter = new CrowdMouseAdapter();
+        addMouseListener(mouseAdapter);
+        addMouseMotionListener(mouseAdapter);
+    }
+
+    /**
+     * Add a member to the crowd. The member is drawn above the existing
+     * members.
+     *
+     * @param themeId
+     *            the theme of the new member
+     * @param transform
+     *            maps the coordinates of the theme resolution to the
+     *            coordinates of this component.
+     * @return the new member.
+     * @throws IOException
+     *             if the theme could not be read.
+     */
+    public Nounours addMember(String themeId, AffineTransform transform) throws IOException {
+        CrowdNounours member = new CrowdNounours(this, transform);
+        member.setClock(clock);
+        member.init(new DefaultStreamLoader(), new CrowdAnimationHandler(member, executor), SILENT_SOUND_HANDLER,
+                NO_VIBRATE_HANDLER, new ByteArrayInputStream(propertiesData), new ByteArrayInputStream(themeData),
+                themeId);
+        // The new member is on top, so it's added at the end of its cells.
+        synchronized (indexLock) {
+            members.add(member);
+            index.add(member, member.getBounds());
+        }
+        revalidate();
+        repaint(member.getBounds());
+        return member;
+    }
+
+    /**
+     * Move or resize a member.
+     *
+     * @param member
+     *            a member returned by {@link #addMember(String, AffineTransform)}
+     * @param transform
+     *            the new transform of the member.
+     */
+    public void setMemberTransform(Nounours member, AffineTransform transform) {
+        CrowdNounours crowdMember = (CrowdNounours) member;
+        Rectangle oldBounds = crowdMember.getBounds();
+        crowdMember.setTransform(transform);
+        updateIndex();
+        repaint(oldBounds);
+        repaint(crowdMember.getBounds());
+    }
+
+    /**
+     * @return the topmost member displayed at the given point of this
+     *         component, or null if there is none.
+     */
+    public Nounours getMemberAt(int x, int y) {
+        List<CrowdNounours> candidates = index.get(x, y);
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            CrowdNounours member = candidates.get(i);
+            Point2D point = toMemberCoordinates(member, x, y);
+            if (point != null && point.getX() >= 0 && point.getY() >= 0 && point.getX() < member.getDeviceWidth()
+                    && point.getY() < member.getDeviceHeight())
+                return member;
+        }
+        return null;
+    }
+
+    /**
+     * Stop all the animations and threads of the crowd.
+     */
+    public void shutdown() {
+        for (CrowdNounours member : members)
+            member.release();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the images of the given theme, which are loaded the first time
+     *         they are requested.
+     */
+    Map<String, BufferedImage> getFrames(Theme theme) {
+        synchronized (frames) {
+            Map<String, BufferedImage> result = frames.get(theme.getId());
+            if (result == null) {
+                result = imageLoader.load(imageLoader.selectImageFiles(theme, theme.getWidth(), theme
+                        .getHeight()));
+                // The members share the composited images too.
+                Map<String, BufferedImage> layers = imageLoader.loadLayers(theme);
+                if (!layers.isEmpty()) {
+                    LayerCompositor layerCompositor = new LayerCompositor(theme.getWidth(), theme.getHeight(),
+                            layers, 0);
+                    for (Image image : theme.getImages().values()) {
+                        if (!image.getLayers().isEmpty())
+                            result.put(image.getId(), layerCompositor.createComposite(image));
+                    }
+                }
+                frames.put(theme.getId(), result);
+            }
+            return result;
+        }
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Rebuild the index, when the bounds of a member changed.
+     */
+    private void updateIndex() {
+        synchronized (indexLock) {
+            GridIndex<CrowdNounours> newIndex = new GridIndex<CrowdNounours>(GRID_CELL_SIZE);
+            for (CrowdNounours member : members)
+                newIndex.add(member, member.getBounds());
+            index = newIndex;
+        }
+    }
+
+    /**
+     * @return the given point of this component, in the coordinates of the
+     *         given member, or null if the transform of the member can't be
+     *         inverted.
+     */
+    private static Point2D toMemberCoordinates(CrowdNounours member, int x, int y) {
+        try {
+            return member.getTransform().inverseTransform(new Point2D.Float(x, y), null);
+        } catch (NoninvertibleTransformException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Draw the members which intersect the area to repaint, in one pass.
+     *
+     * @see javax.swing.JComponent#paintComponent(java.awt.Graphics)
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (isOpaque()) {
+            g.setColor(getBackground());
+            if (clip == null)
+                g.fillRect(0, 0, getWidth(), getHeight());
+            else
+                g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            AffineTransform componentTransform = g2.getTransform();
+            for (CrowdNounours member : members) {
+                if (clip != null && !clip.intersects(member.getBounds()))
+                    continue;
+                BufferedImage frame = member.getFrame();
+                if (frame == null)
+                    continue;
+                g2.transform(member.getTransform());
+                g2.drawImage(frame, 0, 0, member.getDeviceWidth(), member.getDeviceHeight(), null);
+                g2.setTransform(componentTransform);
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    /**
+     * @return the size needed to display all the members.
+     */
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet())
+            return super.getPreferredSize();
+        Rectangle bounds = new Rectangle();
+        for (CrowdNounours member : members)
+            bounds.add(member.getBounds());
+        return new Dimension(bounds.x + bounds.width, bounds.y + bounds.height);
+    }
+
+    /**
+     * Send the mouse events to the member under the mouse when the button was
+     * pressed, in the coordinates of that member.
+     */
+    private class CrowdMouseAdapter extends MouseAdapter {
+        private CrowdNounours target = null;
+
+        @Override
+        public void mousePressed(MouseEvent evt) {
+            target = (CrowdNounours) getMemberAt(evt.getX(), evt.getY());
+            if (target != null)
+                target.getMouseAdapter().mousePressed(toMemberEvent(evt));
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent evt) {
+            if (target != null)
+                target.getMouseAdapter().mouseDragged(toMemberEvent(evt));
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent evt) {
+            if (target != null)
+                target.getMouseAdapter().mouseReleased(toMemberEvent(evt));
+            target = null;
+        }
+
+        private MouseEvent toMemberEvent(MouseEvent evt) {
+            Point2D point = toMemberCoordinates(target, evt.getX(), evt.getY());
+            if (point == null)
+                return evt;
+            return new MouseEvent(CrowdComponent.this, evt.getID(), evt.getWhen(), evt.getModifiersEx(), (int) point
+                    .getX(), (int) point.getY(), evt.getClickCount(), evt.isPopupTrigger(), evt.getButton());
+        }
+    }
+
+    private static byte[] readBytes(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) >= 0)
+                os.write(buffer, 0, bytesRead);
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Display a grid of characters. The optional arguments are the number of
+     * characters, and the scale of each character.
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        double scale = args.length > 1 ? Double.parseDouble(args[1]) : 0.25;
+        CrowdComponent crowd = new CrowdComponent(new FileInputStream("nounours.common.properties"),
+                new FileInputStream("imageset.csv"));
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        for (int i = 0; i < count; i++) {
+            Nounours member = crowd.addMember("0", new AffineTransform());
+            Theme theme = member.getCurrentTheme();
+            AffineTransform transform = AffineTransform.getTranslateInstance((i % columns) * theme.getWidth()
+                    * scale, (i / columns) * theme.getHeight() * scale);
+            transform.scale(scale, scale);
+            crowd.setMemberTransform(member, transform);
+        }
+        JFrame frame = new JFrame("Crowd");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.getContentPane().add(new JScrollPane(crowd), BorderLayout.CENTER);
+        frame.pack();
+        frame.setVisible(true);
+    }
+}
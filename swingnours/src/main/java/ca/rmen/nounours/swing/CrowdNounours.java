@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * One member of a {@link CrowdComponent}. The member doesn't have its own
+ * images or threads: it uses the images and the executor of the crowd.
+ *
+ * The coordinates of the member are those of its theme: the transform of the
+ * member maps the rectangle of the theme resolution to the crowd component.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class CrowdNounours extends Nounours {
+
+    private final CrowdComponent crowd;
+    private final SwingNounoursMouseAdapter mouseAdapter = new SwingNounoursMouseAdapter(this);
+    private volatile AffineTransform transform;
+    private volatile Map<String, BufferedImage> frames = null;
+    private volatile Image displayedImage = null;
+
+    CrowdNounours(CrowdComponent crowd, AffineTransform transform) {
+        this.crowd = crowd;
+        this.transform = new AffineTransform(transform);
+    }
+
+    /**
+     * Use the images of the crowd, which are loaded only once per theme.
+     */
+    @Override
+    protected boolean cacheResources() {
+        frames = crowd.getFrames(getCurrentTheme());
+        return true;
+    }
+
+    @Override
+    protected void displayImage(Image image) {
+        if (image == null)
+            return;
+        displayedImage = image;
+        crowd.repaint(getBounds());
+    }
+
+    /**
+     * Run the task on the executor of the crowd.
+     */
+    @Override
+    protected void runTask(Runnable task) {
+        crowd.getExecutor().execute(task);
+    }
+
+    /**
+     * The crowd pings all of its members from its executor.
+     */
+    @Override
+    protected void startIdlePinger(Runnable pinger) {
+    }
+
+    @Override
+    protected int getDeviceWidth() {
+        Theme theme = getCurrentTheme();
+        return theme == null ? 0 : theme.getWidth();
+    }
+
+    @Override
+    protected int getDeviceHeight() {
+        Theme theme = getCurrentTheme();
+        return theme == null ? 0 : theme.getHeight();
+    }
+
+    /**
+     * @return the image currently displayed by this member.
+     */
+    BufferedImage getFrame() {
+        Image image = displayedImage;
+        Map<String, BufferedImage> frames = this.frames;
+        if (image == null || frames == null)
+            return null;
+        return frames.get(image.getId());
+    }
+
+    AffineTransform getTransform() {
+        return transform;
+    }
+
+    void setTransform(AffineTransform transform) {
+        this.transform = new AffineTransform(transform);
+    }
+
+    /**
+     * @return the bounds of this member in the crowd component.
+     */
+    Rectangle getBounds() {
+        return transform.createTransformedShape(new Rectangle(0, 0, getDeviceWidth(), getDeviceHeight())).getBounds();
+    }
+
+    SwingNounoursMouseAdapter getMouseAdapter() {
+        return mouseAdapter;
+    }
+}
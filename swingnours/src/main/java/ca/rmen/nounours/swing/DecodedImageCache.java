@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of decoded images, so that images don't have to be decoded
+ * again the next time the application starts. Each decoded image is stored in
+ * its own file, as raw ARGB pixels. Files are read through a memory mapping, so
+ * that several processes reading the same file share the same pages of the
+ * OS page cache.
+ *
+ * The file of a decoded image is named after the hash of the content of the
+ * encoded image file, and the size and format of the decoded image.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class DecodedImageCache {
+
+    // "NRG2": the first version, "NRGB", didn't keep the alpha channel.
+    private static final int MAGIC = 0x4e524732;
+    // magic, width, height, 1 if the image has an alpha channel or 0
+    private static final int HEADER_SIZE = 4 * 4;
+
+    private final File directory;
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    /**
+     * @param directory
+     *            where the decoded images are stored. Created if it doesn't
+     *            exist.
+     */
+    DecodedImageCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Trace.debug(this, "Could not create cache directory " + directory);
+    }
+
+    /**
+     * @param imageData
+     *            the content of an encoded image file
+     * @param decodeSpec
+     *            a description of the size and format of the decoded image.
+     * @return the key of the decoded image in the cache.
+     */
+    static String getKey(byte[] imageData, String decodeSpec) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(imageData);
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash)
+                key.append(String.format("%02x", b & 0xff));
+            key.append('-').append(decodeSpec);
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every java platform has SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key
+     *            the key returned by {@link #getKey(byte[], String)}
+     * @return the cached decoded image, or null if it's not in the cache.
+     */
+    BufferedImage read(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            missCount++;
+            return null;
+        }
+        long before = System.nanoTime();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int magic = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int hasAlpha = buffer.getInt();
+            if (magic != MAGIC || width <= 0 || height <= 0 || (hasAlpha != 0 && hasAlpha != 1)
+                    || channel.size() != HEADER_SIZE + (long) width * height * 4) {
+                Trace.debug(this, "Ignoring invalid cache file " + file);
+                missCount++;
+                return null;
+            }
+            // Copy the pixels, one row at a time, directly from the mapped
+            // file into the raster of the image.
+            BufferedImage image = new BufferedImage(width, height, hasAlpha == 1 ? BufferedImage.TYPE_INT_ARGB
+                    : BufferedImage.TYPE_INT_RGB);
+            WritableRaster raster = image.getRaster();
+            IntBuffer pixels = buffer.asIntBuffer();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                pixels.get(row);
+                raster.setDataElements(0, y, width, 1, row);
+            }
+            hitCount++;
+            Trace.debug(this, "Read " + key + " in " + (System.nanoTime() - before) / 1000 + "us (" + hitCount
+                    + " hits, " + missCount + " misses)");
+            return image;
+        } catch (IOException e) {
+            Trace.debug(this, e);
+            missCount++;
+            return null;
+        } finally {
+            close(randomAccessFile);
+        }
+    }
+
+    /**
+     * Store the given decoded image in the cache. The image is written to a
+     * temporary file first, so that other processes never see a partially
+     * written file.
+     *
+     * @param key
+     *            the key returned by {@link #getKey(byte[], String)}
+     * @param image
+     *            the decoded image
+     */
+    void write(String key, BufferedImage image) {
+        File file = getFile(key);
+        File tempFile = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            tempFile = File.createTempFile(key, ".tmp", directory);
+            randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(image.getColorModel().hasAlpha() ? 1 : 0);
+            header.flip();
+            writeFully(channel, header);
+            ByteBuffer rowBuffer = ByteBuffer.allocate(width * 4);
+            IntBuffer rowInts = rowBuffer.asIntBuffer();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                rowInts.clear();
+                rowInts.put(row);
+                rowBuffer.clear();
+                writeFully(channel, rowBuffer);
+            }
+            randomAccessFile.close();
+            randomAccessFile = null;
+            if (!tempFile.renameTo(file))
+                Trace.debug(this, "Could not create cache file " + file);
+        } catch (IOException e) {
+            Trace.debug(this, e);
+        } finally {
+            close(randomAccessFile);
+            if (tempFile != null && tempFile.exists() && !tempFile.delete())
+                Trace.debug(this, "Could not delete " + tempFile);
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + ".rgb");
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void close(RandomAccessFile file) {
+        if (file == null)
+            return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            Trace.debug(this, e);
+        }
+    }
+}
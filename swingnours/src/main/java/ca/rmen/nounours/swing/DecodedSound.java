@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A sound file decoded into PCM samples, ready to be written to an audio line.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class DecodedSound {
+
+    private final AudioFormat format;
+    private final byte[] data;
+
+    private DecodedSound(AudioFormat format, byte[] data) {
+        this.format = format;
+        this.data = data;
+    }
+
+    /**
+     * Read the whole sound file into memory, converting it to signed PCM if
+     * it's in another encoding.
+     *
+     * @param file
+     *            a sound file
+     * @return the decoded sound
+     * @throws IOException
+     *             if the file could not be read
+     * @throws UnsupportedAudioFileException
+     *             if the format of the file is not supported.
+     */
+    static DecodedSound decode(File file) throws IOException, UnsupportedAudioFileException {
+        return decode(AudioSystem.getAudioInputStream(file));
+    }
+
+    /**
+     * Read the whole stream into memory, converting it to signed PCM if it's
+     * in another encoding. The stream is closed.
+     *
+     * @param soundStream
+     *            a sound stream of finite length
+     * @return the decoded sound
+     * @throws IOException
+     *             if the stream could not be read
+     */
+    static DecodedSound decode(AudioInputStream soundStream) throws IOException {
+        try {
+            AudioFormat format = soundStream.getFormat();
+            if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+                    && !AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding())) {
+                AudioFormat pcmFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                        format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+                soundStream = AudioSystem.getAudioInputStream(pcmFormat, soundStream);
+                format = pcmFormat;
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = soundStream.read(buffer, 0, buffer.length)) >= 0)
+                os.write(buffer, 0, bytesRead);
+            return new DecodedSound(format, os.toByteArray());
+        } finally {
+            soundStream.close();
+        }
+    }
+
+    AudioFormat getFormat() {
+        return format;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the duration of the sound in milliseconds.
+     */
+    long getDuration() {
+        return (long) (1000L * data.length / format.getFrameSize() / format.getFrameRate());
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * Stores the images of a theme in less memory than the decoded images. Some
+ * images, the keyframes, are stored in full. The other images are stored as
+ * the 16x16 tiles which differ from a keyframe. The images are stored in the
+ * order of the adjacent image graph, and each one uses the keyframe it
+ * differs the least from.
+ *
+ * Images are reconstructed, exactly, when they are requested, into a small
+ * pool of buffers owned by this store. The caller of {@link #get(String)}
+ * owns the returned buffer until it gives it back with
+ * {@link #release(BufferedImage)}, once the buffer is no longer drawn.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class DeltaFrameStore {
+
+    private static final int TILE_SIZE = 16;
+    // An image becomes a keyframe if more than this fraction of its tiles
+    // differ from the best keyframe. The images of a theme are often photos,
+    // where most tiles differ a little, so a delta which saves a quarter of
+    // the image is still worth it.
+    private static final float MAX_CHANGED_TILES = 0.75f;
+    // The number of buffers of each image size kept for reconstruction: one
+    // displayed, one being painted, and one being reconstructed.
+    private static final int POOL_SIZE = 3;
+
+    /**
+     * An image stored in full.
+     */
+    private static class Keyframe {
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+
+        private Keyframe(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * An image stored as the tiles which differ from its keyframe.
+     */
+    private static class Delta {
+        private final Keyframe keyframe;
+        // The index of each changed tile, in row order.
+        private final int[] tiles;
+        // The pixels of the changed tiles, one tile after the other.
+        private final int[] pixels;
+
+        private Delta(Keyframe keyframe, int[] tiles, int[] pixels) {
+            this.keyframe = keyframe;
+            this.tiles = tiles;
+            this.pixels = pixels;
+        }
+    }
+
+    private final Map<String, Keyframe> keyframes = new HashMap<String, Keyframe>();
+    private final Map<String, Delta> deltas = new HashMap<String, Delta>();
+    private final int bufferType;
+    private final int[] tileBuffer = new int[TILE_SIZE * TILE_SIZE];
+    // The buffers owned by this store, and those of them which aren't used.
+    private final List<BufferedImage> pool = new ArrayList<BufferedImage>();
+    private final List<BufferedImage> freeBuffers = new ArrayList<BufferedImage>();
+    private long reconstructionCount = 0;
+    private long reconstructionTime = 0;
+
+    /**
+     * Choose the keyframes and compute the deltas of the other images.
+     *
+     * @param theme
+     *            the theme containing the adjacent image graph
+     * @param images
+     *            map of image id to decoded image. The images are not
+     *            referenced after this constructor returns.
+     */
+    DeltaFrameStore(Theme theme, Map<String, BufferedImage> images) {
+        long before = System.currentTimeMillis();
+        boolean hasAlpha = false;
+        for (BufferedImage image : images.values())
+            hasAlpha |= image.getColorModel().hasAlpha();
+        bufferType = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        // Visit the images breadth-first in the adjacent image graph, starting
+        // from the default image, so that the neighbours of an image are
+        // usually visited right after it, and become deltas of its keyframe.
+        Set<Image> visited = new LinkedHashSet<Image>();
+        List<Image> roots = new ArrayList<Image>();
+        if (theme.getDefaultImage() != null)
+            roots.add(theme.getDefaultImage());
+        roots.addAll(theme.getImages().values());
+        for (Image root : roots) {
+            if (visited.contains(root))
+                continue;
+            LinkedList<Image> queue = new LinkedList<Image>();
+            queue.add(root);
+            visited.add(root);
+            while (!queue.isEmpty()) {
+                Image image = queue.removeFirst();
+                BufferedImage bufImage = images.get(image.getId());
+                if (bufImage != null)
+                    add(image, bufImage);
+                for (Image adjacentImage : image.getAllAdjacentImages()) {
+                    if (visited.add(adjacentImage))
+                        queue.add(adjacentImage);
+                }
+            }
+        }
+
+        long fullSize = 0;
+        for (BufferedImage image : images.values())
+            fullSize += (long) image.getWidth() * image.getHeight() * 4;
+        long storedSize = 0;
+        for (Keyframe keyframe : keyframes.values())
+            storedSize += keyframe.pixels.length * 4;
+        for (Delta delta : deltas.values())
+            storedSize += (delta.tiles.length + delta.pixels.length) * 4;
+        Trace.debug(this, "Stored " + images.size() + " images as " + keyframes.size() + " keyframes and "
+                + deltas.size() + " deltas in " + (System.currentTimeMillis() - before) + "ms: " + storedSize / 1024
+                + "KB instead of " + fullSize / 1024 + "KB (ratio "
+                + String.format("%.1f", storedSize == 0 ? 0 : (float) fullSize / storedSize) + ")");
+    }
+
+    /**
+     * Store the given image, as a delta against the keyframe which has the
+     * fewest different tiles, or as a new keyframe if all keyframes differ too
+     * much.
+     */
+    private void add(Image image, BufferedImage bufImage) {
+        int width = bufImage.getWidth();
+        int height = bufImage.getHeight();
+        int[] pixels = bufImage.getRGB(0, 0, width, height, null, 0, width);
+
+        Keyframe bestKeyframe = null;
+        List<Integer> bestTiles = null;
+        int tileCount = getTileCount(width) * getTileCount(height);
+        for (Keyframe keyframe : keyframes.values()) {
+            if (keyframe.width != width || keyframe.height != height)
+                continue;
+            List<Integer> changedTiles = getChangedTiles(keyframe, pixels);
+            if (bestTiles == null || changedTiles.size() < bestTiles.size()) {
+                bestKeyframe = keyframe;
+                bestTiles = changedTiles;
+            }
+        }
+        if (bestTiles == null || bestTiles.size() > tileCount * MAX_CHANGED_TILES) {
+            keyframes.put(image.getId(), new Keyframe(width, height, pixels));
+            return;
+        }
+
+        int[] tiles = new int[bestTiles.size()];
+        int[] tilePixels = new int[bestTiles.size() * TILE_SIZE * TILE_SIZE];
+        int offset = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = bestTiles.get(i);
+            offset += copyTile(pixels, width, height, tiles[i], tilePixels, offset);
+        }
+        if (offset < tilePixels.length) {
+            // The tiles on the right and bottom edges are smaller.
+            int[] trimmed = new int[offset];
+            System.arraycopy(tilePixels, 0, trimmed, 0, offset);
+            tilePixels = trimmed;
+        }
+        deltas.put(image.getId(), new Delta(bestKeyframe, tiles, tilePixels));
+    }
+
+    /**
+     * @return the indexes of the tiles which differ between the keyframe and
+     *         the given pixels.
+     */
+    private static List<Integer> getChangedTiles(Keyframe keyframe, int[] pixels) {
+        List<Integer> result = new ArrayList<Integer>();
+        int tilesPerRow = getTileCount(keyframe.width);
+        int tileRows = getTileCount(keyframe.height);
+        for (int tileY = 0; tileY < tileRows; tileY++) {
+            for (int tileX = 0; tileX < tilesPerRow; tileX++) {
+                if (isTileChanged(keyframe, pixels, tileX, tileY))
+                    result.add(tileY * tilesPerRow + tileX);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isTileChanged(Keyframe keyframe, int[] pixels, int tileX, int tileY) {
+        int maxX = Math.min((tileX + 1) * TILE_SIZE, keyframe.width);
+        int maxY = Math.min((tileY + 1) * TILE_SIZE, keyframe.height);
+        for (int y = tileY * TILE_SIZE; y < maxY; y++) {
+            int rowStart = y * keyframe.width;
+            for (int x = tileX * TILE_SIZE; x < maxX; x++) {
+                if (keyframe.pixels[rowStart + x] != pixels[rowStart + x])
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the pixels of the given tile, row by row, to the destination array.
+     *
+     * @return the number of pixels copied.
+     */
+    private static int copyTile(int[] pixels, int width, int height, int tile, int[] dest, int offset) {
+        int tilesPerRow = getTileCount(width);
+        int x = (tile % tilesPerRow) * TILE_SIZE;
+        int y = (tile / tilesPerRow) * TILE_SIZE;
+        int tileWidth = Math.min(TILE_SIZE, width - x);
+        int tileHeight = Math.min(TILE_SIZE, height - y);
+        for (int row = 0; row < tileHeight; row++)
+            System.arraycopy(pixels, (y + row) * width + x, dest, offset + row * tileWidth, tileWidth);
+        return tileWidth * tileHeight;
+    }
+
+    private static int getTileCount(int size) {
+        return (size + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Reconstruct the given image into a buffer of the pool. If all the
+     * buffers of the pool are used, a buffer which isn't kept in the pool is
+     * created.
+     *
+     * @param imageId
+     *            the id of the image
+     * @return a buffer containing the image, identical to the one given to
+     *         the constructor, or null if it's not in this store. Give it back
+     *         with {@link #release(BufferedImage)} once it's no longer drawn.
+     */
+    synchronized BufferedImage get(String imageId) {
+        long before = System.nanoTime();
+        Keyframe keyframe = keyframes.get(imageId);
+        Delta delta = null;
+        if (keyframe == null) {
+            delta = deltas.get(imageId);
+            if (delta == null)
+                return null;
+            keyframe = delta.keyframe;
+        }
+        BufferedImage buffer = acquireBuffer(keyframe.width, keyframe.height);
+
+        // Copy the keyframe through the raster, rather than writing to the
+        // data buffer array, so that Java2D may still cache the image in
+        // video memory.
+        WritableRaster raster = buffer.getRaster();
+        raster.setDataElements(0, 0, keyframe.width, keyframe.height, keyframe.pixels);
+        if (delta != null) {
+            int tilesPerRow = getTileCount(keyframe.width);
+            int offset = 0;
+            for (int tile : delta.tiles) {
+                int x = (tile % tilesPerRow) * TILE_SIZE;
+                int y = (tile / tilesPerRow) * TILE_SIZE;
+                int tileWidth = Math.min(TILE_SIZE, keyframe.width - x);
+                int tileHeight = Math.min(TILE_SIZE, keyframe.height - y);
+                int tilePixelCount = tileWidth * tileHeight;
+                System.arraycopy(delta.pixels, offset, tileBuffer, 0, tilePixelCount);
+                raster.setDataElements(x, y, tileWidth, tileHeight, tileBuffer);
+                offset += tilePixelCount;
+            }
+        }
+
+        reconstructionTime += System.nanoTime() - before;
+        reconstructionCount++;
+        if (reconstructionCount % 100 == 0) {
+            Trace.debug(this, "Average reconstruction time: " + reconstructionTime / reconstructionCount / 1000
+                    + "us over " + reconstructionCount + " images");
+        }
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer returned by {@link #get(String)}, so that other
+     * images can be reconstructed into it. Images which weren't created by
+     * this store are ignored.
+     */
+    synchronized void release(BufferedImage buffer) {
+        if (pool.contains(buffer) && !freeBuffers.contains(buffer))
+            freeBuffers.add(buffer);
+    }
+
+    /**
+     * @return a free buffer of the pool of the given size, or a new buffer,
+     *         which is added to the pool if the pool doesn't have POOL_SIZE
+     *         buffers of that size yet.
+     */
+    private BufferedImage acquireBuffer(int width, int height) {
+        for (int i = freeBuffers.size() - 1; i >= 0; i--) {
+            BufferedImage buffer = freeBuffers.get(i);
+            if (buffer.getWidth() == width && buffer.getHeight() == height)
+                return freeBuffers.remove(i);
+        }
+        int bufferCount = 0;
+        for (BufferedImage buffer : pool) {
+            if (buffer.getWidth() == width && buffer.getHeight() == height)
+                bufferCount++;
+        }
+        BufferedImage buffer = new BufferedImage(width, height, bufferType);
+        if (bufferCount < POOL_SIZE)
+            pool.add(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.rmen.nounours.data.Animation;
+import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * Stores, for the transitions between images which can happen in a theme, the
+ * bounds of the pixels which differ between the two images. The transitions
+ * are those in the adjacent image graph, and those between consecutive frames
+ * of the animations.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class FrameDiffs {
+
+    // The key of both maps is the image id. The bounds are in the
+    // coordinates of the images.
+    private final Map<String, Map<String, Rectangle>> diffs = new HashMap<String, Map<String, Rectangle>>();
+
+    /**
+     * Compute the bounds of the changed pixels, for all the known transitions
+     * in the given theme.
+     *
+     * @param theme
+     *            the theme whose transitions we analyze
+     * @param frames
+     *            map of image id to decoded image.
+     */
+    void compute(Theme theme, Map<String, BufferedImage> frames) {
+        long before = System.currentTimeMillis();
+        diffs.clear();
+        Image defaultImage = theme.getDefaultImage();
+        for (Image image : theme.getImages().values()) {
+            for (Image adjacentImage : image.getAllAdjacentImages())
+                add(image, adjacentImage, frames);
+        }
+        for (Animation animation : theme.getAnimations().values()) {
+            List<AnimationImage> animationImages = animation.getImages();
+            if (animationImages.isEmpty())
+                continue;
+            Image previousImage = defaultImage;
+            for (AnimationImage animationImage : animationImages) {
+                add(previousImage, animationImage.getImage(), frames);
+                previousImage = animationImage.getImage();
+            }
+            // When the animation repeats, and when it ends.
+            add(previousImage, animationImages.get(0).getImage(), frames);
+            add(previousImage, defaultImage, frames);
+        }
+        int transitionCount = 0;
+        long diffArea = 0;
+        long totalArea = 0;
+        for (Map<String, Rectangle> imageDiffs : diffs.values()) {
+            for (Rectangle diff : imageDiffs.values()) {
+                transitionCount++;
+                diffArea += diff.width * diff.height;
+            }
+        }
+        for (BufferedImage frame : frames.values())
+            totalArea += frame.getWidth() * frame.getHeight();
+        if (transitionCount > 0 && !frames.isEmpty())
+            Trace.debug(this, "Computed " + transitionCount + " frame transitions in "
+                    + (System.currentTimeMillis() - before) + "ms. Average changed area: "
+                    + (100 * diffArea * frames.size() / transitionCount / totalArea) + "%");
+    }
+
+    /**
+     * @return the bounds of the pixels which differ between the two images,
+     *         an empty rectangle if the images are identical, or null if we
+     *         don't know this transition.
+     */
+    Rectangle get(String fromImageId, String toImageId) {
+        Map<String, Rectangle> imageDiffs = diffs.get(fromImageId);
+        if (imageDiffs == null)
+            return null;
+        return imageDiffs.get(toImageId);
+    }
+
+    private void add(Image image1, Image image2, Map<String, BufferedImage> frames) {
+        if (image1 == null || image2 == null || get(image1.getId(), image2.getId()) != null)
+            return;
+        BufferedImage frame1 = frames.get(image1.getId());
+        BufferedImage frame2 = frames.get(image2.getId());
+        if (frame1 == null || frame2 == null || frame1.getWidth() != frame2.getWidth()
+                || frame1.getHeight() != frame2.getHeight())
+            return;
+        Rectangle diff = computeDiff(frame1, frame2);
+        put(image1.getId(), image2.getId(), diff);
+        put(image2.getId(), image1.getId(), diff);
+    }
+
+    private void put(String fromImageId, String toImageId, Rectangle diff) {
+        Map<String, Rectangle> imageDiffs = diffs.get(fromImageId);
+        if (imageDiffs == null) {
+            imageDiffs = new HashMap<String, Rectangle>();
+            diffs.put(fromImageId, imageDiffs);
+        }
+        imageDiffs.put(toImageId, diff);
+    }
+
+    /**
+     * @return the bounding box of the pixels which differ between the two
+     *         images, which must have the same size.
+     */
+    private static Rectangle computeDiff(BufferedImage frame1, BufferedImage frame2) {
+        int width = frame1.getWidth();
+        int height = frame1.getHeight();
+        int[] row1 = new int[width];
+        int[] row2 = new int[width];
+        int minX = width;
+        int maxX = -1;
+        int minY = height;
+        int maxY = -1;
+        for (int y = 0; y < height; y++) {
+            frame1.getRGB(0, y, width, 1, row1, 0, width);
+            frame2.getRGB(0, y, width, 1, row2, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (row1[x] != row2[x]) {
+                    if (x < minX)
+                        minX = x;
+                    if (x > maxX)
+                        maxX = x;
+                    if (y < minY)
+                        minY = y;
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0)
+            return new Rectangle();
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes all the pixels of the image file, whatever the display size.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class FullImageDecoder implements ImageDecoder {
+
+    static final String DECODE_SPEC = "full-rgb";
+
+    @Override
+    public String getDecodeSpec(int imageWidth, int imageHeight, int displayWidth, int displayHeight) {
+        return DECODE_SPEC;
+    }
+
+    @Override
+    public BufferedImage decode(byte[] imageData, String decodeSpec) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(imageData));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Finds the items near a point, by dividing the plane into square cells of a
+ * fixed size. Each item is stored in all the cells which its bounds overlap.
+ *
+ * Items may be added while other threads get items: adding an item only
+ * copies the few cells it overlaps.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class GridIndex<T> {
+
+    private final int cellSize;
+    private final Map<Long, List<T>> cells = new ConcurrentHashMap<Long, List<T>>();
+
+    GridIndex(int cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * @param item
+     *            the item to add
+     * @param bounds
+     *            the bounds of the item.
+     */
+    synchronized void add(T item, Rectangle bounds) {
+        int minCellX = getCell(bounds.x);
+        int maxCellX = getCell(bounds.x + bounds.width - 1);
+        int minCellY = getCell(bounds.y);
+        int maxCellY = getCell(bounds.y + bounds.height - 1);
+        for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                Long key = getKey(cellX, cellY);
+                List<T> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new CopyOnWriteArrayList<T>();
+                    cells.put(key, cell);
+                }
+                cell.add(item);
+            }
+        }
+    }
+
+    /**
+     * @return the items whose bounds may contain the given point, in the order
+     *         in which they were added.
+     */
+    List<T> get(int x, int y) {
+        List<T> cell = cells.get(getKey(getCell(x), getCell(y)));
+        if (cell == null)
+            return Collections.emptyList();
+        return cell;
+    }
+
+    private int getCell(int coordinate) {
+        // Round towards negative infinity, for negative coordinates.
+        return (int) Math.floor((double) coordinate / cellSize);
+    }
+
+    private static Long getKey(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xffffffffL);
+    }
+}
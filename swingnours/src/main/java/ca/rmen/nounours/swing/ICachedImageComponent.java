@@ -18,11 +18,19 @@
  */
 package ca.rmen.nounours.swing;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 public interface ICachedImageComponent {
     public void setImage(BufferedImage image);
 
+    /**
+     * @param listener
+     *            notified when an image given to {@link #setImage} is no
+     *            longer drawn, or null.
+     */
+    public void setImageReleaseListener(ImageReleaseListener listener);
+
     public int getHeight();
 
     public int getWidth();
@@ -32,4 +40,12 @@ public interface ICachedImageComponent {
     public int getImageWidth();
 
     public void repaint();
+
+    public void repaintImageRegion(Rectangle imageRegion);
+
+    /**
+     * The user is interacting with the image, or a fast animation is running:
+     * frames may be drawn with lower quality until the interaction stops.
+     */
+    public void onInteraction();
 }
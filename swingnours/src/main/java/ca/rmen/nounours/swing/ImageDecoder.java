@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Decodes image files into images which can be drawn.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+interface ImageDecoder {
+
+    /**
+     * @param imageWidth
+     *            the width of the image in the file
+     * @param imageHeight
+     *            the height of the image in the file
+     * @param displayWidth
+     *            the width at which the image will be displayed
+     * @param displayHeight
+     *            the height at which the image will be displayed
+     * @return a short description of how the file should be decoded for this
+     *         display size. Decoding the same file with the same description
+     *         always gives the same image: the description is part of the key
+     *         of the image in the {@link DecodedImageCache}.
+     */
+    String getDecodeSpec(int imageWidth, int imageHeight, int displayWidth, int displayHeight);
+
+    /**
+     * @param imageData
+     *            the content of the image file
+     * @param decodeSpec
+     *            a description returned by
+     *            {@link #getDecodeSpec(int, int, int, int)}
+     * @return the decoded image, or null if the image format is not supported.
+     * @throws IOException
+     *             if the image could not be decoded.
+     */
+    BufferedImage decode(byte[] imageData, String decodeSpec) throws IOException;
+}
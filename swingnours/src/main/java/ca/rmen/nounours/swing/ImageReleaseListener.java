@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Notified when a component no longer draws an image it was given, so that
+ * the owner of the image may reuse it.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+public interface ImageReleaseListener {
+
+    /**
+     * Called on the thread which draws the component.
+     *
+     * @param image
+     *            an image given to
+     *            {@link ICachedImageComponent#setImage(BufferedImage)}, which
+     *            is no longer the current image and isn't being drawn.
+     */
+    public void onImageReleased(BufferedImage image);
+}
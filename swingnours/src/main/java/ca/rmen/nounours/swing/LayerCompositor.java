@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageLayer;
+
+/**
+ * Draws the images which are made of layers. The most recently used
+ * composited images are kept, by combination of layers: images with the same
+ * layers at the same positions share the same composited image. A composited
+ * image is never drawn into again once it has been returned, because it may
+ * still be displayed.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class LayerCompositor {
+
+    private final CompatibleImageConverter imageConverter = new CompatibleImageConverter();
+    private final int width;
+    private final int height;
+    private final Map<String, BufferedImage> layerImages;
+    private final int capacity;
+    private final LinkedHashMap<String, BufferedImage> composites;
+    private int hitCount = 0;
+    private int missCount = 0;
+    private long compositeTime = 0;
+
+    /**
+     * @param width
+     *            the width of the composited images
+     * @param height
+     *            the height of the composited images
+     * @param layerImages
+     *            map of layer file name to decoded layer.
+     * @param capacity
+     *            the maximum number of composited images to keep.
+     */
+    LayerCompositor(int width, int height, Map<String, BufferedImage> layerImages, final int capacity) {
+        this.width = width;
+        this.height = height;
+        this.layerImages = layerImages;
+        this.capacity = capacity;
+        composites = new LinkedHashMap<String, BufferedImage>(capacity + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the layered image, shared by other images with the same layers.
+     */
+    synchronized BufferedImage get(Image image) {
+        String key = getKey(image);
+        BufferedImage result = composites.get(key);
+        if (result != null) {
+            hitCount++;
+            return result;
+        }
+        missCount++;
+        long before = System.nanoTime();
+        result = createComposite(image);
+        composites.put(key, result);
+        compositeTime += System.nanoTime() - before;
+        if (missCount % 100 == 0) {
+            Trace.debug(this, hitCount + " hits, " + missCount + " misses, average composite time "
+                    + compositeTime / missCount / 1000 + "us");
+        }
+        return result;
+    }
+
+    /**
+     * @return a new image containing the layers of the given image.
+     */
+    BufferedImage createComposite(Image image) {
+        BufferedImage result = imageConverter.createImage(width, height, getTransparency(image));
+        composite(image, result);
+        return result;
+    }
+
+    private void composite(Image image, BufferedImage target) {
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, width, height);
+            g.setComposite(AlphaComposite.SrcOver);
+            for (ImageLayer layer : image.getLayers()) {
+                BufferedImage layerImage = layerImages.get(layer.getFilename());
+                if (layerImage != null)
+                    g.drawImage(layerImage, layer.getX(), layer.getY(), null);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * @return {@link Transparency#OPAQUE} if the bottom layer is opaque and
+     *         covers the whole image.
+     */
+    private int getTransparency(Image image) {
+        List<ImageLayer> layers = image.getLayers();
+        if (!layers.isEmpty()) {
+            ImageLayer bottomLayer = layers.get(0);
+            BufferedImage bottomImage = layerImages.get(bottomLayer.getFilename());
+            if (bottomImage != null && bottomImage.getTransparency() == Transparency.OPAQUE
+                    && bottomLayer.getX() <= 0 && bottomLayer.getY() <= 0
+                    && bottomLayer.getX() + bottomImage.getWidth() >= width
+                    && bottomLayer.getY() + bottomImage.getHeight() >= height)
+                return Transparency.OPAQUE;
+        }
+        return Transparency.TRANSLUCENT;
+    }
+
+    private static String getKey(Image image) {
+        StringBuilder key = new StringBuilder();
+        for (ImageLayer layer : image.getLayers())
+            key.append(layer).append('|');
+        return key.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Renders a midi sequence to PCM samples, faster than real time, so that it
+ * can be played like a wav sound.
+ *
+ * javax.sound.midi has no API to render a synthesizer's output to a stream.
+ * The synthesizer of the JDK has an <code>openStream(AudioFormat, Map)</code>
+ * method for this, which we call by reflection. On Java 9 and later, this
+ * needs the option
+ * <code>--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED</code>.
+ * Where rendering fails, the sequence is played by the sequencer.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class MidiRenderer {
+
+    // Let the last notes fade out.
+    private static final long RELEASE_TIME_US = 1000000;
+    private static final int META_TEMPO = 0x51;
+    // The tempo of a midi file with no tempo event: 120 beats per minute.
+    private static final int DEFAULT_TEMPO_US_PER_QUARTER = 500000;
+
+    private MidiRenderer() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param sequence
+     *            the sequence to render.
+     * @param format
+     *            the format of the rendered samples.
+     * @return the rendered sequence.
+     * @throws IOException
+     *             if the sequence could not be rendered.
+     */
+    static DecodedSound render(Sequence sequence, AudioFormat format) throws IOException {
+        Synthesizer synthesizer = null;
+        try {
+            synthesizer = MidiSystem.getSynthesizer();
+            Method openStream = synthesizer.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+            AudioInputStream stream = (AudioInputStream) openStream.invoke(synthesizer, format,
+                    new HashMap<String, Object>());
+            // Send all the events with their time stamps. The synthesizer
+            // plays each one when the stream reaches its time.
+            Receiver receiver = synthesizer.getReceiver();
+            long lengthUs = 0;
+            for (TimedMessage message : getTimedMessages(sequence)) {
+                receiver.send(message.message, message.timeUs);
+                lengthUs = message.timeUs;
+            }
+            long frameLength = (long) ((lengthUs + RELEASE_TIME_US) * format.getFrameRate() / 1000000);
+            return DecodedSound.decode(new AudioInputStream(stream, format, frameLength));
+        } catch (MidiUnavailableException e) {
+            throw new IOException("No synthesizer: " + e.getMessage());
+        } catch (NoSuchMethodException e) {
+            throw new IOException("The synthesizer can't render to a stream");
+        } catch (IllegalAccessException e) {
+            throw new IOException("The synthesizer can't render to a stream: " + e.getMessage());
+        } catch (InvocationTargetException e) {
+            throw new IOException("Could not open the synthesizer stream: " + e.getCause());
+        } finally {
+            if (synthesizer != null)
+                synthesizer.close();
+        }
+    }
+
+    /**
+     * @return all the messages of the sequence, in the order of their time
+     *         stamps, in microseconds.
+     */
+    private static List<TimedMessage> getTimedMessages(Sequence sequence) {
+        List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++)
+                events.add(track.get(i));
+        }
+        // The sort is stable, so events at the same tick stay in track order.
+        Collections.sort(events, new Comparator<MidiEvent>() {
+            @Override
+            public int compare(MidiEvent e1, MidiEvent e2) {
+                return e1.getTick() < e2.getTick() ? -1 : e1.getTick() > e2.getTick() ? 1 : 0;
+            }
+        });
+
+        List<TimedMessage> result = new ArrayList<TimedMessage>(events.size());
+        boolean ppq = sequence.getDivisionType() == Sequence.PPQ;
+        int resolution = sequence.getResolution();
+        long tempo = DEFAULT_TEMPO_US_PER_QUARTER;
+        long lastTick = 0;
+        long timeUs = 0;
+        for (MidiEvent event : events) {
+            long tick = event.getTick();
+            if (ppq)
+                timeUs += (tick - lastTick) * tempo / resolution;
+            else
+                timeUs = (long) (tick * 1000000 / (sequence.getDivisionType() * resolution));
+            lastTick = tick;
+            MidiMessage message = event.getMessage();
+            if (message instanceof MetaMessage) {
+                MetaMessage metaMessage = (MetaMessage) message;
+                if (metaMessage.getType() == META_TEMPO && metaMessage.getData().length == 3) {
+                    byte[] data = metaMessage.getData();
+                    tempo = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+                }
+                // Meta messages are for the sequencer, not the synthesizer.
+                continue;
+            }
+            result.add(new TimedMessage(message, timeUs));
+        }
+        return result;
+    }
+
+    private static class TimedMessage {
+        private final MidiMessage message;
+        private final long timeUs;
+
+        TimedMessage(MidiMessage message, long timeUs) {
+            this.message = message;
+            this.timeUs = timeUs;
+        }
+    }
+}
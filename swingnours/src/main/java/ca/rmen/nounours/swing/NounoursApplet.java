@@ -104,6 +104,15 @@ public class NounoursApplet extends JApplet {
 
     }
 
+    /**
+     * Stop the threads of nounours when the applet is unloaded.
+     */
+    public void destroy() {
+        if (nounours != null)
+            nounours.release();
+        super.destroy();
+    }
+
     /**
      * Run the applet inside a frame.
      * 
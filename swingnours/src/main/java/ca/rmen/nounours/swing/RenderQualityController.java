@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+
+import javax.swing.Timer;
+
+/**
+ * Chooses between quality and fast scaling of the displayed image. Frames are
+ * drawn with quality scaling, unless the user is interacting (or a fast
+ * animation is running) and quality frames take longer than the frame-time
+ * budget to draw. Once the interaction has been quiet for a while, the
+ * resting frame is drawn again with quality scaling.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class RenderQualityController {
+
+    // System property: the maximum time, in milliseconds, to draw a frame during interaction.
+    private static final String PROP_FRAME_BUDGET = "nounours.render.budget";
+    // System property: the time, in milliseconds, without interaction after which we draw quality frames again.
+    private static final String PROP_QUIET_PERIOD = "nounours.render.quietperiod";
+
+    private final long frameBudget;
+    private final long quietPeriod;
+    private final Timer quietTimer;
+    private final FrameTimes qualityFrameTimes = new FrameTimes("quality");
+    private final FrameTimes fastFrameTimes = new FrameTimes("fast");
+    private volatile long lastInteractionTime = 0;
+    // The 90th percentile of recent quality frame times, in nanoseconds.
+    private volatile long qualityFrameTime = 0;
+    // True if the last frame was drawn with fast scaling.
+    private volatile boolean isDegraded = false;
+
+    /**
+     * @param redraw
+     *            called on the event dispatch thread, when the last frame was
+     *            drawn with fast scaling and the interaction has been quiet
+     *            for the quiet period.
+     */
+    RenderQualityController(final Runnable redraw) {
+        frameBudget = Long.getLong(PROP_FRAME_BUDGET, 8) * 1000000;
+        quietPeriod = Integer.getInteger(PROP_QUIET_PERIOD, 300);
+        quietTimer = new Timer((int) quietPeriod, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (isDegraded)
+                    redraw.run();
+            }
+        });
+        quietTimer.setRepeats(false);
+    }
+
+    /**
+     * The user is dragging, or an animation with short intervals is running.
+     */
+    void onInteraction() {
+        lastInteractionTime = System.currentTimeMillis();
+        quietTimer.restart();
+    }
+
+    /**
+     * @return true if the next frame should be drawn with quality scaling.
+     */
+    boolean isHighQuality() {
+        if (System.currentTimeMillis() - lastInteractionTime >= quietPeriod)
+            return true;
+        return qualityFrameTime <= frameBudget;
+    }
+
+    /**
+     * Set the scaling hints of the graphics for the given quality.
+     */
+    void applyHints(Graphics2D g, boolean highQuality) {
+        if (highQuality) {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        } else {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        }
+    }
+
+    /**
+     * @param highQuality
+     *            the quality with which the frame was drawn
+     * @param duration
+     *            the time it took to draw the frame, in nanoseconds.
+     */
+    void onFrameDrawn(boolean highQuality, long duration) {
+        isDegraded = !highQuality;
+        if (highQuality)
+            qualityFrameTime = qualityFrameTimes.add(duration);
+        else
+            fastFrameTimes.add(duration);
+    }
+
+    /**
+     * The most recent frame times of one quality. The percentiles are logged
+     * every SAMPLE_COUNT frames.
+     */
+    private class FrameTimes {
+        private static final int SAMPLE_COUNT = 100;
+        private final String name;
+        private final long[] samples = new long[SAMPLE_COUNT];
+        private int sampleCount = 0;
+        private long totalCount = 0;
+
+        FrameTimes(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the 90th percentile of the recent frame times.
+         */
+        synchronized long add(long duration) {
+            samples[(int) (totalCount % SAMPLE_COUNT)] = duration;
+            totalCount++;
+            if (sampleCount < SAMPLE_COUNT)
+                sampleCount++;
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            if (totalCount % SAMPLE_COUNT == 0) {
+                Trace.debug(RenderQualityController.this, name + " frame times over " + sampleCount + " frames: p50 "
+                        + getPercentile(sorted, 50) / 1000 + "us, p90 " + getPercentile(sorted, 90) / 1000
+                        + "us, p99 " + getPercentile(sorted, 99) / 1000 + "us (budget " + frameBudget / 1000
+                        + "us)");
+            }
+            return getPercentile(sorted, 90);
+        }
+
+        private long getPercentile(long[] sorted, int percentile) {
+            return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Mixes any number of overlapping sounds into one audio line, which stays
+ * open for the life of the mixer. A mixing thread sums the active voices into
+ * fixed-size buffers and writes them to the line. The writes block when the
+ * line is full, which paces the thread to the audio clock.
+ *
+ * Sounds are converted once, when they're added, to the sample rate of the
+ * mixer, so mixing a voice is just a multiply-add per sample. Requests to play
+ * or stop voices are queued and applied by the mixing thread at the start of
+ * the next buffer, at the exact frame requested. At most {@link #MAX_VOICES}
+ * voices are mixed at once: when a sound is played while all voices are
+ * busy, the oldest voice is replaced. So the cost of a buffer doesn't depend
+ * on how many sounds were triggered.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class SoundMixer {
+
+    static final float SAMPLE_RATE = 44100f;
+    static final int MAX_VOICES = 16;
+    // 512 frames is about 12ms at 44.1kHz.
+    private static final int BUFFER_FRAMES = 512;
+    // The number of mixed buffers the line can hold before a write blocks.
+    private static final int LINE_BUFFERS = 4;
+
+    private final AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
+    // Map of sound id to sound converted to the mixer's sample rate.
+    private final Map<String, MixerSound> sounds = new ConcurrentHashMap<String, MixerSound>();
+    private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();
+    private final AtomicInteger nextVoiceId = new AtomicInteger(1);
+
+    // Only used by the mixing thread.
+    private final Voice[] voices = new Voice[MAX_VOICES];
+    // The voices being mixed, by voice id, for other threads.
+    private final Map<Integer, Voice> activeVoices = new ConcurrentHashMap<Integer, Voice>();
+    private final int[] mixBuffer = new int[BUFFER_FRAMES * 2];
+    private final byte[] outputBuffer = new byte[BUFFER_FRAMES * 4];
+
+    private SourceDataLine line;
+    private Thread mixingThread;
+    private volatile boolean running = false;
+    // If true, the voices are mixed, so they keep their positions, but
+    // silence is written.
+    private volatile boolean muted = false;
+    // The number of frames mixed since the mixer started.
+    private volatile long framePosition = 0;
+
+    /**
+     * Open the output line and start the mixing thread.
+     *
+     * @throws LineUnavailableException
+     *             if no line supports 44.1kHz 16-bit stereo.
+     */
+    synchronized void start() throws LineUnavailableException {
+        if (running)
+            return;
+        line = AudioSystem.getSourceDataLine(format);
+        line.open(format, LINE_BUFFERS * outputBuffer.length);
+        line.start();
+        running = true;
+        mixingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mix();
+            }
+        }, "SoundMixer");
+        mixingThread.setDaemon(true);
+        mixingThread.setPriority(Thread.MAX_PRIORITY);
+        mixingThread.start();
+        Trace.debug(this, "Started mixing " + MAX_VOICES + " voices into " + format + ", buffer " + BUFFER_FRAMES
+                + " frames");
+    }
+
+    /**
+     * Stop the mixing thread and close the line.
+     */
+    synchronized void shutdown() {
+        if (!running)
+            return;
+        running = false;
+        try {
+            mixingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.close();
+    }
+
+    /**
+     * Convert the sound to the sample rate of the mixer, so it can be played.
+     *
+     * @param soundId
+     *            the id used to play the sound.
+     * @throws IllegalArgumentException
+     *             if the sound's samples aren't 8 or 16-bit PCM.
+     */
+    void addSound(String soundId, DecodedSound sound) {
+        sounds.put(soundId, new MixerSound(sound));
+    }
+
+    /**
+     * Forget all the sounds. Voices already playing continue until they end.
+     */
+    void clearSounds() {
+        sounds.clear();
+    }
+
+    /**
+     * @param muted
+     *            if true, silence is written instead of the mixed voices.
+     *            Voices keep playing, silently, so their positions still move.
+     */
+    void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * @return the format of the mixed samples.
+     */
+    AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of frames mixed since the mixer started. Because the
+     *         line buffers a few mixed buffers, the frame being heard is a
+     *         little behind this position.
+     */
+    long getFramePosition() {
+        return framePosition;
+    }
+
+    /**
+     * @param voiceId
+     *            the id returned by {@link #play(String, float, float, long)}
+     * @return the position, in microseconds, of the voice's sound which is
+     *         being heard, based on the frame position of the line, or -1 if
+     *         the voice hasn't started or has ended.
+     */
+    long getVoicePosition(int voiceId) {
+        Voice voice = activeVoices.get(voiceId);
+        if (voice == null)
+            return -1;
+        long playedFrames = line.getLongFramePosition() - voice.startFrame;
+        if (playedFrames < 0)
+            return -1;
+        return (long) (playedFrames * 1000000 / SAMPLE_RATE);
+    }
+
+    /**
+     * Play the sound from the start of the next mixed buffer.
+     *
+     * @see #play(String, float, float, long)
+     */
+    int play(String soundId, float gain, float pan) {
+        return play(soundId, gain, pan, 0);
+    }
+
+    /**
+     * Play a sound.
+     *
+     * @param soundId
+     *            a sound added with {@link #addSound(String, DecodedSound)}
+     * @param gain
+     *            the volume of the sound, 1 for the original volume.
+     * @param pan
+     *            -1 for left only, 0 for center, and 1 for right only.
+     * @param startFrame
+     *            the mixer frame position at which the sound starts. If this
+     *            position has already been mixed, the sound starts at the
+     *            start of the next buffer.
+     * @return the id of the voice, which can be used to stop it, or -1 if the
+     *         sound is unknown.
+     */
+    int play(String soundId, float gain, float pan, long startFrame) {
+        MixerSound sound = sounds.get(soundId);
+        if (sound == null) {
+            Trace.debug(this, "No sound " + soundId);
+            return -1;
+        }
+        int voiceId = nextVoiceId.getAndIncrement();
+        commands.add(new Command(voiceId, sound, gain, pan, startFrame));
+        return voiceId;
+    }
+
+    /**
+     * Stop a voice at the start of the next mixed buffer.
+     *
+     * @see #stop(int, long)
+     */
+    void stop(int voiceId) {
+        stop(voiceId, 0);
+    }
+
+    /**
+     * Stop a voice.
+     *
+     * @param voiceId
+     *            the id returned by {@link #play(String, float, float, long)}
+     * @param stopFrame
+     *            the mixer frame position at which the voice stops.
+     */
+    void stop(int voiceId, long stopFrame) {
+        commands.add(new Command(voiceId, null, 0, 0, stopFrame));
+    }
+
+    /**
+     * Stop all the voices at the start of the next mixed buffer.
+     */
+    void stopAll() {
+        commands.add(new Command(0, null, 0, 0, 0));
+    }
+
+    /**
+     * The loop of the mixing thread.
+     */
+    private void mix() {
+        long totalMixTime = 0;
+        int bufferCount = 0;
+        while (running) {
+            long before = System.nanoTime();
+            long bufferStart = framePosition;
+            applyCommands(bufferStart);
+            Arrays.fill(mixBuffer, 0);
+            for (int i = 0; i < voices.length; i++) {
+                Voice voice = voices[i];
+                if (voice != null && !voice.mix(mixBuffer, bufferStart)) {
+                    voices[i] = null;
+                    activeVoices.remove(voice.id);
+                }
+            }
+            if (muted)
+                Arrays.fill(mixBuffer, 0);
+            // Clip the sum to 16 bits, and write it little-endian.
+            for (int i = 0, j = 0; i < mixBuffer.length; i++) {
+                int sample = mixBuffer[i];
+                if (sample > Short.MAX_VALUE)
+                    sample = Short.MAX_VALUE;
+                else if (sample < Short.MIN_VALUE)
+                    sample = Short.MIN_VALUE;
+                outputBuffer[j++] = (byte) sample;
+                outputBuffer[j++] = (byte) (sample >> 8);
+            }
+            totalMixTime += System.nanoTime() - before;
+            if (++bufferCount % 1000 == 0) {
+                Trace.debug(this, "Mixed " + bufferCount + " buffers in " + totalMixTime / bufferCount / 1000
+                        + "us on average");
+            }
+            line.write(outputBuffer, 0, outputBuffer.length);
+            framePosition = bufferStart + BUFFER_FRAMES;
+        }
+    }
+
+    /**
+     * Apply the play and stop requests to the voices.
+     */
+    private void applyCommands(long bufferStart) {
+        Command command;
+        while ((command = commands.poll()) != null) {
+            long frame = Math.max(command.frame, bufferStart);
+            if (command.sound != null) {
+                int index = findFreeVoice();
+                if (voices[index] != null)
+                    activeVoices.remove(voices[index].id);
+                voices[index] = new Voice(command.voiceId, command.sound, command.gain, command.pan, frame);
+                activeVoices.put(command.voiceId, voices[index]);
+            } else {
+                for (Voice voice : voices) {
+                    if (voice != null && (command.voiceId == 0 || voice.id == command.voiceId))
+                        voice.endFrame = Math.min(voice.endFrame, frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the index of a free voice, or of the oldest voice if all are
+     *         busy.
+     */
+    private int findFreeVoice() {
+        int oldest = 0;
+        for (int i = 0; i < voices.length; i++) {
+            if (voices[i] == null)
+                return i;
+            if (voices[i].startFrame < voices[oldest].startFrame)
+                oldest = i;
+        }
+        Trace.debug(this, "All voices busy, replacing voice " + voices[oldest].id);
+        return oldest;
+    }
+
+    /**
+     * A sound converted to 16-bit samples at the sample rate of the mixer.
+     */
+    private static class MixerSound {
+        private final short[] samples;
+        private final int channels;
+        private final int frameCount;
+
+        MixerSound(DecodedSound sound) {
+            AudioFormat format = sound.getFormat();
+            short[] sourceSamples = toShorts(sound.getData(), format);
+            channels = format.getChannels() >= 2 ? 2 : 1;
+            int sourceChannels = format.getChannels();
+            int sourceFrameCount = sourceSamples.length / sourceChannels;
+            // Resample by linear interpolation.
+            double step = format.getSampleRate() / SAMPLE_RATE;
+            frameCount = (int) (sourceFrameCount / step);
+            samples = new short[frameCount * channels];
+            for (int frame = 0; frame < frameCount; frame++) {
+                double sourcePosition = frame * step;
+                int sourceFrame = (int) sourcePosition;
+                int nextSourceFrame = Math.min(sourceFrame + 1, sourceFrameCount - 1);
+                double fraction = sourcePosition - sourceFrame;
+                for (int channel = 0; channel < channels; channel++) {
+                    int s0 = sourceSamples[sourceFrame * sourceChannels + channel];
+                    int s1 = sourceSamples[nextSourceFrame * sourceChannels + channel];
+                    samples[frame * channels + channel] = (short) (s0 + (s1 - s0) * fraction);
+                }
+            }
+        }
+
+        private static short[] toShorts(byte[] data, AudioFormat format) {
+            boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+            if (format.getSampleSizeInBits() == 8) {
+                short[] result = new short[data.length];
+                for (int i = 0; i < data.length; i++)
+                    result[i] = (short) ((signed ? data[i] : (data[i] & 0xff) - 128) << 8);
+                return result;
+            }
+            if (format.getSampleSizeInBits() == 16) {
+                short[] result = new short[data.length / 2];
+                boolean bigEndian = format.isBigEndian();
+                for (int i = 0; i < result.length; i++) {
+                    int hi = bigEndian ? data[2 * i] : data[2 * i + 1];
+                    int lo = (bigEndian ? data[2 * i + 1] : data[2 * i]) & 0xff;
+                    int sample = (hi << 8) | lo;
+                    result[i] = (short) (signed ? sample : (sample & 0xffff) - 32768);
+                }
+                return result;
+            }
+            throw new IllegalArgumentException("Unsupported sample size " + format.getSampleSizeInBits());
+        }
+    }
+
+    /**
+     * A sound being played.
+     */
+    private static class Voice {
+        private final int id;
+        private final MixerSound sound;
+        private final long startFrame;
+        // Gain of each output channel, in 1/256ths.
+        private final int leftGain;
+        private final int rightGain;
+        private long endFrame;
+
+        Voice(int id, MixerSound sound, float gain, float pan, long startFrame) {
+            this.id = id;
+            this.sound = sound;
+            this.startFrame = startFrame;
+            this.endFrame = startFrame + sound.frameCount;
+            pan = Math.max(-1, Math.min(1, pan));
+            this.leftGain = (int) (256 * gain * Math.min(1, 1 - pan));
+            this.rightGain = (int) (256 * gain * Math.min(1, 1 + pan));
+        }
+
+        /**
+         * Add the samples of this voice to the buffer, which starts at the given
+         * mixer frame.
+         *
+         * @return false if the voice has ended.
+         */
+        boolean mix(int[] buffer, long bufferStart) {
+            long bufferEnd = bufferStart + BUFFER_FRAMES;
+            int from = (int) (Math.max(startFrame, bufferStart) - bufferStart);
+            int to = (int) (Math.min(endFrame, bufferEnd) - bufferStart);
+            short[] samples = sound.samples;
+            int soundFrame = (int) (bufferStart + from - startFrame);
+            if (sound.channels == 1) {
+                for (int i = from; i < to; i++, soundFrame++) {
+                    int sample = samples[soundFrame];
+                    buffer[2 * i] += (sample * leftGain) >> 8;
+                    buffer[2 * i + 1] += (sample * rightGain) >> 8;
+                }
+            } else {
+                for (int i = from; i < to; i++, soundFrame++) {
+                    buffer[2 * i] += (samples[2 * soundFrame] * leftGain) >> 8;
+                    buffer[2 * i + 1] += (samples[2 * soundFrame + 1] * rightGain) >> 8;
+                }
+            }
+            return endFrame > bufferEnd;
+        }
+    }
+
+    /**
+     * A request to start or stop a voice. A stop request has no sound, and
+     * stops all voices if its voice id is 0.
+     */
+    private static class Command {
+        private final int voiceId;
+        private final MixerSound sound;
+        private final float gain;
+        private final float pan;
+        private final long frame;
+
+        Command(int voiceId, MixerSound sound, float gain, float pan, long frame) {
+            this.voiceId = voiceId;
+            this.sound = sound;
+            this.gain = gain;
+            this.pan = pan;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes only every n-th pixel of every n-th row of the image file, when the
+ * image is displayed at less than 1/n of its size. The decoder skips the
+ * other pixels, so decoding is faster and the decoded image smaller than if
+ * the whole image were decoded and then scaled down.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class SubsamplingImageDecoder implements ImageDecoder {
+
+    private static final String DECODE_SPEC_PREFIX = "sub";
+    private static final String DECODE_SPEC_SUFFIX = "-rgb";
+
+    /**
+     * @return {@link FullImageDecoder#DECODE_SPEC} if the image is displayed at
+     *         more than half its size, or the subsampling factor otherwise.
+     */
+    @Override
+    public String getDecodeSpec(int imageWidth, int imageHeight, int displayWidth, int displayHeight) {
+        int subsampling = getSubsampling(imageWidth, imageHeight, displayWidth, displayHeight);
+        if (subsampling == 1)
+            return FullImageDecoder.DECODE_SPEC;
+        return DECODE_SPEC_PREFIX + subsampling + DECODE_SPEC_SUFFIX;
+    }
+
+    /**
+     * @return the largest factor by which we can divide the size of the image
+     *         and still cover the display size.
+     */
+    private static int getSubsampling(int imageWidth, int imageHeight, int displayWidth, int displayHeight) {
+        if (displayWidth <= 0 || displayHeight <= 0)
+            return 1;
+        return Math.max(1, Math.min(imageWidth / displayWidth, imageHeight / displayHeight));
+    }
+
+    @Override
+    public BufferedImage decode(byte[] imageData, String decodeSpec) throws IOException {
+        int subsampling = 1;
+        if (decodeSpec.startsWith(DECODE_SPEC_PREFIX) && decodeSpec.endsWith(DECODE_SPEC_SUFFIX))
+            subsampling = Integer.parseInt(decodeSpec.substring(DECODE_SPEC_PREFIX.length(), decodeSpec.length()
+                    - DECODE_SPEC_SUFFIX.length()));
+        ImageInputStream imageInputStream = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData));
+        if (imageInputStream == null)
+            return null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (subsampling > 1)
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageInputStream.close();
+        }
+    }
+}
@@ -19,18 +19,21 @@
 package ca.rmen.nounours.swing;
 
 import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.sound.midi.MidiUnavailableException;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -39,6 +42,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JScrollPane;
 
 import ca.rmen.nounours.Nounours;
+import ca.rmen.nounours.data.Animation;
 import ca.rmen.nounours.data.Image;
 import ca.rmen.nounours.data.Theme;
 import ca.rmen.nounours.io.DefaultStreamLoader;
@@ -54,10 +58,40 @@ public class SwingNounours extends Nounours implements ActionListener {
     private static final int HEIGHT = 480;
     private static final int WIDTH = 320;
     private ICachedImageComponent component = null;
-    private Map<String, BufferedImage> cache = new HashMap<String, BufferedImage>();
+    private volatile Map<String, BufferedImage> cache = new HashMap<String, BufferedImage>();
+    private volatile FrameDiffs frameDiffs = new FrameDiffs();
+    // If not null, the images are stored here instead of in the cache.
+    private volatile DeltaFrameStore deltaFrameStore = null;
+    // Composites the images which are made of layers, if the theme has any.
+    private volatile LayerCompositor layerCompositor = null;
+    private ThemeImageLoader imageLoader = null;
+    // The image files which are currently in the cache.
+    private volatile Map<String, ThemeImageLoader.ImageFile> cachedImageFiles = null;
+    // The image files which we are loading or have loaded.
+    private Map<String, ThemeImageLoader.ImageFile> pendingImageFiles = null;
+    // True while a task reloads the images after the display was resized.
+    private boolean isReloadingImages = false;
+    private Image displayedImage = null;
+    // True if the last animation started has short intervals.
+    private volatile boolean isFastAnimation = false;
     static final String MENU_RANDOM = "Random";
     private static final String MENU_HELP_FEATURES = "HelpFeatures";
     private static final String MENU_TOGGLE_SOUND = "ToggleSound";
+    // System property: if true, keep the displayed image in video memory.
+    private static final String PROP_USE_VOLATILE_IMAGE = "nounours.volatileimage";
+    // System property: if true, display the images in a canvas with a render thread.
+    private static final String PROP_ACTIVE_RENDERING = "nounours.activerendering";
+    // System property: the folder where decoded images are stored between runs.
+    private static final String PROP_PIXEL_CACHE_DIR = "nounours.pixelcache.dir";
+    // System property: if true, store most images as differences from other images, to use less memory.
+    private static final String PROP_DELTA_FRAMES = "nounours.deltaframes";
+    // System property: "subsampling" to decode images at the size at which they're displayed.
+    private static final String PROP_DECODER = "nounours.decoder";
+    private static final String DECODER_SUBSAMPLING = "subsampling";
+    // System property: the number of composited images of layered themes to keep.
+    private static final String PROP_LAYER_CACHE_SIZE = "nounours.layers.cachesize";
+    // Animations with intervals up to this, in milliseconds, are drawn like interactions.
+    private static final int FAST_ANIMATION_INTERVAL = 100;
 
     private SwingNounoursAnimationHandler animationHandler = null;
     private SwingNounoursSoundHandler soundHandler = null;
@@ -75,10 +109,37 @@ public class SwingNounours extends Nounours implements ActionListener {
     public SwingNounours(ICachedImageComponent component, JMenu animationMenu, JMenu optionMenu, JMenu helpMenu,
             InputStream globalPropertiesFile, InputStream imageSetFile,
             String themeId) throws IOException, MidiUnavailableException {
-        this.animationHandler = new SwingNounoursAnimationHandler(this, animationMenu);
         this.soundHandler = new SwingNounoursSoundHandler(this);
+        this.animationHandler = new SwingNounoursAnimationHandler(this, animationMenu, soundHandler);
         this.component = component;
         vibrateHandler = new SwingNounoursVibrateHandler();
+        String pixelCacheDir = System.getProperty(PROP_PIXEL_CACHE_DIR);
+        DecodedImageCache decodedImageCache = null;
+        if (pixelCacheDir != null)
+            decodedImageCache = new DecodedImageCache(new File(pixelCacheDir));
+        ImageDecoder imageDecoder;
+        if (DECODER_SUBSAMPLING.equals(System.getProperty(PROP_DECODER)))
+            imageDecoder = new SubsamplingImageDecoder();
+        else
+            imageDecoder = new FullImageDecoder();
+        imageLoader = new ThemeImageLoader(decodedImageCache, imageDecoder);
+        // Reuse the buffers of the reconstructed frames once they are drawn.
+        component.setImageReleaseListener(new ImageReleaseListener() {
+            public void onImageReleased(BufferedImage image) {
+                DeltaFrameStore store = deltaFrameStore;
+                if (store != null)
+                    store.release(image);
+            }
+        });
+        // Load other image variants when the display size changes.
+        if (component instanceof Component) {
+            ((Component) component).addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    onViewportResized();
+                }
+            });
+        }
         // Set up the menus
         if (animationMenu != null && optionMenu != null && helpMenu != null) {
             JMenuItem menuItem = new MyMenuItem(MENU_RANDOM, MENU_RANDOM);
@@ -103,9 +164,15 @@ public class SwingNounours extends Nounours implements ActionListener {
     @Override
     protected boolean cacheResources() {
         // Cache images for efficient drawing
-        Map<String, Image> images = getCurrentTheme().getImages();
-        for (Image image : images.values())
-            cacheImage(image);
+        Theme theme = getCurrentTheme();
+        Map<String, ThemeImageLoader.ImageFile> imageFiles = imageLoader.selectImageFiles(theme, getDeviceWidth(),
+                getDeviceHeight());
+        synchronized (this) {
+            pendingImageFiles = imageFiles;
+        }
+        loadImages(theme, imageFiles);
+        // Decode the sounds now, so they start without delay.
+        soundHandler.cacheSounds(theme);
         return true;
     }
 
@@ -119,47 +186,105 @@ public class SwingNounours extends Nounours implements ActionListener {
     }
 
     /**
-     * Read the image from file and store it in memory.
+     * Read the given image files and replace the images in memory with them.
      * 
-     * @param image
+     * @param theme
+     *            the theme to which the images belong.
+     * @param imageFiles
+     *            map of image id to the file to read for that image.
      */
-    private void cacheImage(Image image) {
-        BufferedImage bufImage;
-        InputStream imageInputStream = null;
-        try {
-            imageInputStream = readFile(image.getFilename());
-            if(imageInputStream == null)
-            {
-                debug("Could not read file " + image);
+    private void loadImages(Theme theme, Map<String, ThemeImageLoader.ImageFile> imageFiles) {
+        Map<String, BufferedImage> newCache = imageLoader.load(imageFiles);
+        // Find out which parts of the display change, for each transition.
+        FrameDiffs newFrameDiffs = new FrameDiffs();
+        newFrameDiffs.compute(theme, newCache);
+        DeltaFrameStore newDeltaFrameStore = null;
+        if (Boolean.getBoolean(PROP_DELTA_FRAMES)) {
+            newDeltaFrameStore = new DeltaFrameStore(theme, newCache);
+            newCache = new HashMap<String, BufferedImage>();
+        }
+        Map<String, BufferedImage> layers = imageLoader.loadLayers(theme);
+        LayerCompositor newLayerCompositor = null;
+        if (!layers.isEmpty())
+            newLayerCompositor = new LayerCompositor(theme.getWidth(), theme.getHeight(), layers, Integer.getInteger(
+                    PROP_LAYER_CACHE_SIZE, 8));
+        synchronized (this) {
+            // The theme or the display size changed while we were loading.
+            if (theme != getCurrentTheme() || imageFiles != pendingImageFiles)
                 return;
-            }
-            bufImage = ImageIO.read(imageInputStream);
+            cache = newCache;
+            deltaFrameStore = newDeltaFrameStore;
+            layerCompositor = newLayerCompositor;
+            frameDiffs = newFrameDiffs;
+            cachedImageFiles = imageFiles;
+            // The next image must be repainted completely.
+            displayedImage = null;
+        }
+    }
 
-            if (bufImage == null)
+    /**
+     * The display was resized. If another image variant, or another way of
+     * decoding the images, is more appropriate for the new size, load the
+     * images again in the background, and keep displaying the current images
+     * until then.
+     *
+     * Resizing the window sends many resize events: only one reload task runs
+     * at a time, and when it's done, it loads the images again only if they
+     * changed in the meantime, for the latest size.
+     */
+    private void onViewportResized() {
+        Theme theme = getCurrentTheme();
+        if (theme == null)
+            return;
+        Map<String, ThemeImageLoader.ImageFile> imageFiles = imageLoader.selectImageFiles(theme, getDeviceWidth(),
+                getDeviceHeight());
+        synchronized (this) {
+            if (imageFiles.equals(pendingImageFiles))
+                return;
+            pendingImageFiles = imageFiles;
+            if (isReloadingImages)
                 return;
-            cache.put(image.getId(), bufImage);
-        } catch (IOException e) {
-            debug(image.getId() + "," + image.getFilename());
-            e.printStackTrace();
+            isReloadingImages = true;
         }
+        debug("Loading images for a display of " + getDeviceWidth() + "x" + getDeviceHeight());
+        runTask(new Runnable() {
+            public void run() {
+                reloadImages();
+            }
+        });
     }
 
-    protected InputStream readFile(String filename) throws IOException {
-        InputStream imageInputStream = null;
-
-        if (filename.startsWith("http://")) {
-            URL imageUrl = new URL(filename);
-            imageInputStream = imageUrl.openStream();
-
-        } else {
-            File file = new File(filename);
-            if (!file.exists() || !file.isFile()) {
-                debug(filename + " is not a valid file");
-                return null;
+    /**
+     * Load the pending image files, until they are the ones in memory.
+     */
+    private void reloadImages() {
+        while (true) {
+            Theme theme;
+            Map<String, ThemeImageLoader.ImageFile> imageFiles;
+            synchronized (this) {
+                if (pendingImageFiles == cachedImageFiles) {
+                    isReloadingImages = false;
+                    break;
+                }
+                theme = getCurrentTheme();
+                imageFiles = pendingImageFiles;
             }
-            imageInputStream = new FileInputStream(file);
+            loadImages(theme, imageFiles);
         }
-        return imageInputStream;
+        Image image = getCurrentImage();
+        if (image != null)
+            displayImage(image);
+    }
+
+    /**
+     * @deprecated the images are read by the image loader of this class.
+     * @return a stream on the given file or http URL, or null if the file
+     *         doesn't exist.
+     */
+    @Deprecated
+    @SuppressWarnings("UnusedDeclaration")
+    protected InputStream readFile(String filename) throws IOException {
+        return imageLoader.readFile(filename);
     }
 
     /**
@@ -173,10 +298,70 @@ public class SwingNounours extends Nounours implements ActionListener {
             System.out.println("No image to display!");
             return;
         }
-        BufferedImage bufImage = cache.get(image.getId());
-        component.setImage(bufImage);
-        component.repaint();
+        Rectangle diff;
+        synchronized (this) {
+            BufferedImage bufImage = getFrame(image);
+            diff = displayedImage == null ? null : frameDiffs.get(displayedImage.getId(), image.getId());
+            displayedImage = image;
+            component.setImage(bufImage);
+        }
+        if (isFastAnimation && animationHandler.isAnimating())
+            component.onInteraction();
+        // Only repaint the part of the display which changed, if we know it.
+        if (diff == null)
+            component.repaint();
+        else if (!diff.isEmpty())
+            component.repaintImageRegion(diff);
+    }
 
+    /**
+     * Let the display draw faster while the user drags.
+     *
+     * @see ca.rmen.nounours.Nounours#onMove(int, int)
+     */
+    @Override
+    public void onMove(int x, int y) {
+        component.onInteraction();
+        super.onMove(x, y);
+    }
+
+    /**
+     * Rebuild the animation menu for the theme in use.
+     *
+     * @see ca.rmen.nounours.Nounours#useTheme(String)
+     */
+    @Override
+    public void useTheme(String id) {
+        super.useTheme(id);
+        animationHandler.setTheme(getCurrentTheme());
+    }
+
+    /**
+     * Also stop the sound threads.
+     *
+     * @see ca.rmen.nounours.Nounours#release()
+     */
+    @Override
+    public void release() {
+        super.release();
+        soundHandler.shutdown();
+    }
+
+    @Override
+    public void doAnimation(Animation animation, boolean isDynamicAnimation) {
+        isFastAnimation = animation.getInterval() <= FAST_ANIMATION_INTERVAL;
+        super.doAnimation(animation, isDynamicAnimation);
+    }
+
+    /**
+     * @return the decoded image to display for the given image.
+     */
+    private BufferedImage getFrame(Image image) {
+        if (layerCompositor != null && !image.getLayers().isEmpty())
+            return layerCompositor.get(image);
+        if (deltaFrameStore != null)
+            return deltaFrameStore.get(image.getId());
+        return cache.get(image.getId());
     }
 
     /**
@@ -209,7 +394,12 @@ public class SwingNounours extends Nounours implements ActionListener {
 
     public static void main(String[] args) throws IOException, MidiUnavailableException {
 
-        CachedImageComponent panel = new CachedImageComponent();
+        ICachedImageComponent imageComponent;
+        if (Boolean.getBoolean(PROP_ACTIVE_RENDERING))
+            imageComponent = new ActiveRenderingCanvas();
+        else
+            imageComponent = new CachedImageComponent(Boolean.getBoolean(PROP_USE_VOLATILE_IMAGE));
+        Component panel = (Component) imageComponent;
         JMenu animation = new JMenu("Animations");
         JMenuBar menuBar = new JMenuBar();
         menuBar.add(animation);
@@ -221,20 +411,26 @@ public class SwingNounours extends Nounours implements ActionListener {
         InputStream propertiesFile = new FileInputStream("nounours.common.properties");
         InputStream imageSetFile = new FileInputStream("imageset.csv");
 
-        SwingNounours nounours = new SwingNounours(panel, animation, optionsMenu, helpMenu, propertiesFile,
+        SwingNounours nounours = new SwingNounours(imageComponent, animation, optionsMenu, helpMenu, propertiesFile,
                 imageSetFile, "0");
 
         JFrame frame = new JFrame("Test");
         frame.setJMenuBar(menuBar);
         frame.setSize(WIDTH, HEIGHT);
         // panel.setPreferredSize(new Dimension(WIDTH, HEIGHT));
-        JScrollPane scrollpane = new JScrollPane(panel);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.getContentPane().add(scrollpane, BorderLayout.CENTER);
+        // The canvas is a heavyweight component: don't put it in a scroll pane.
+        if (panel instanceof ActiveRenderingCanvas) {
+            panel.setPreferredSize(new Dimension(WIDTH, HEIGHT));
+            frame.getContentPane().add(panel, BorderLayout.CENTER);
+        } else {
+            JScrollPane scrollpane = new JScrollPane(panel);
+            frame.getContentPane().add(scrollpane, BorderLayout.CENTER);
+        }
         frame.pack();
         frame.setVisible(true);
         SwingNounoursMouseAdapter mouseAdapter = new SwingNounoursMouseAdapter(nounours);
-        SwingNounoursWindowAdapter windowAdapter = new SwingNounoursWindowAdapter(nounours, panel);
+        SwingNounoursWindowAdapter windowAdapter = new SwingNounoursWindowAdapter(nounours, imageComponent);
         SwingNounoursComponentAdapter componentAdapter = new SwingNounoursComponentAdapter(nounours);
         panel.addMouseListener(mouseAdapter);
         panel.addMouseMotionListener(mouseAdapter);
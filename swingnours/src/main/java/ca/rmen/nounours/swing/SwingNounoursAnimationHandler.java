@@ -20,16 +20,25 @@ package ca.rmen.nounours.swing;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 
 import ca.rmen.nounours.Nounours;
 import ca.rmen.nounours.NounoursAnimationHandler;
+import ca.rmen.nounours.NounoursClock;
 import ca.rmen.nounours.data.Animation;
 import ca.rmen.nounours.data.AnimationImage;
+import ca.rmen.nounours.data.AnimationRegistry;
+import ca.rmen.nounours.data.Theme;
 
 /**
+ * Displays animations. Each frame is a task scheduled on the clock of the
+ * nounours, at the deadline of the frame, so animations follow virtual time
+ * when the nounours runs on a virtual clock.
  *
  * @author Carmen Alvarez
  *
@@ -38,27 +47,79 @@ public class SwingNounoursAnimationHandler implements NounoursAnimationHandler,
 
     boolean isDoingAnimation = false;
     private JMenu animationMenu = null;
-    private Thread animationThread = null;
+    // The items of the animations of the current theme, in the animation menu.
+    private final List<JMenuItem> animationMenuItems = new ArrayList<JMenuItem>();
+    private AnimationRun currentAnimation = null;
     Nounours nounours = null;
+    // Gives the position of the animation sounds, to sync the frames to.
+    private SwingNounoursSoundHandler soundHandler = null;
 
     public SwingNounoursAnimationHandler(Nounours nounours, JMenu animationMenu) {
+        this(nounours, animationMenu, null);
+    }
+
+    /**
+     * @param soundHandler
+     *            if not null, the frames of animations with a sound follow the
+     *            playback position of the sound.
+     */
+    public SwingNounoursAnimationHandler(Nounours nounours, JMenu animationMenu,
+            SwingNounoursSoundHandler soundHandler) {
         this.nounours = nounours;
         this.animationMenu = animationMenu;
+        this.soundHandler = soundHandler;
     }
 
     /**
-     * Build the animation menu as we read from the animation.csv file.
+     * Add the menu item of an animation which isn't part of the current theme.
+     * The animations of the theme are added to the menu by
+     * {@link #setTheme(Theme)}.
      *
      * @see ca.rmen.nounours.Nounours#addAnimation(ca.rmen.nounours.data.Animation)
      */
     @Override
     public void addAnimation(Animation animation) {
-        if (animation.isVisible()) {
-            JMenuItem menuItem = new MyMenuItem(animation.getId(), animation.getLabel());
-            menuItem.addActionListener(this);
-            if(animationMenu != null)
-                animationMenu.add(menuItem);
+        AnimationRegistry registry = getAnimationRegistry();
+        if (registry != null && registry.get(animation.getId()) == animation)
+            return;
+        if (animation.isVisible())
+            addMenuItem(animation);
+    }
+
+    /**
+     * Replace the items of the animation menu with the visible animations of
+     * the given theme, in the order of the theme.
+     *
+     * @param theme
+     *            the theme now in use, or null.
+     */
+    void setTheme(Theme theme) {
+        if (animationMenu != null) {
+            for (JMenuItem menuItem : animationMenuItems)
+                animationMenu.remove(menuItem);
         }
+        animationMenuItems.clear();
+        AnimationRegistry registry = theme == null ? null : theme.getAnimationRegistry();
+        if (registry == null)
+            return;
+        for (Animation animation : registry.getVisibleAnimations())
+            addMenuItem(animation);
+    }
+
+    /**
+     * @return the animations of the current theme, or null if it's not loaded.
+     */
+    private AnimationRegistry getAnimationRegistry() {
+        Theme theme = nounours.getCurrentTheme();
+        return theme == null ? null : theme.getAnimationRegistry();
+    }
+
+    private void addMenuItem(Animation animation) {
+        JMenuItem menuItem = new MyMenuItem(animation.getId(), animation.getLabel());
+        menuItem.addActionListener(this);
+        animationMenuItems.add(menuItem);
+        if (animationMenu != null)
+            animationMenu.add(menuItem);
     }
 
     /**
@@ -67,50 +128,26 @@ public class SwingNounoursAnimationHandler implements NounoursAnimationHandler,
      * @see ca.rmen.nounours.Nounours#doAnimation(ca.rmen.nounours.data.Animation)
      */
     public void doAnimation(final Animation animation, final boolean isDynamicAnimation) {
-        Runnable doAnimation = new Runnable() {
-
-            @Override
-            public void run() {
-                // Note that we are doing an animation
-                synchronized (this) {
-                    isDoingAnimation = true;
-                }
-
-                Trace.debug(this, "Do animation " + animation.getId());
-                boolean interrupted = false;
-                // Iterate through each of the images and display them.
-                for (int i = 0; i < animation.getRepeat() && !interrupted; i++) {
-                    for (AnimationImage image : animation.getImages()) {
-                        nounours.setImage(image.getImage());
-                        try {
-                            Thread.sleep((long) (animation.getInterval() * image.getDuration()));
-                        } catch (InterruptedException e) {
-                            Trace.debug(this, animation.getLabel() + " interrupted");
-                            interrupted = true;
-                            break;
-                        }
-                    }
-                }
-                if(!isDynamicAnimation)
-                    nounours.reset();
-                // No longer doing an animation.
-                synchronized (this) {
-                    isDoingAnimation = false;
-                }
-            }
-
-        };
-        animationThread = new Thread(doAnimation);
-        animationThread.start();
+        AnimationRun animationRun = new AnimationRun(animation, isDynamicAnimation);
+        // Note that we are doing an animation
+        synchronized (this) {
+            isDoingAnimation = true;
+            currentAnimation = animationRun;
+        }
+        animationRun.scheduleNextFrame(0);
     }
 
     /**
-     * Interrupt the animation thread.
+     * Stop the current animation, if any.
      */
     public void stopAnimation() {
         Trace.debug(this, "stop animation");
-        if (animationThread != null)
-            animationThread.interrupt();
+        AnimationRun animationRun;
+        synchronized (this) {
+            animationRun = currentAnimation;
+        }
+        if (animationRun != null)
+            animationRun.finish(true);
     }
 
     /*
@@ -128,14 +165,124 @@ public class SwingNounoursAnimationHandler implements NounoursAnimationHandler,
         return false;
     }
 
+    /**
+     * Same as {@link #isAnimationRunning()}, without logging, for callers which
+     * check this for every frame.
+     */
+    boolean isAnimating() {
+        synchronized (this) {
+            return isDoingAnimation;
+        }
+    }
+
     @Override
     public void actionPerformed(ActionEvent evt) {
         if (evt.getSource() instanceof MyMenuItem) {
             MyMenuItem menuItem = (MyMenuItem) evt.getSource();
             Trace.debug(this, menuItem);
             // Show a specific animation.
-            Animation animation = nounours.getAnimations().get(menuItem.getId());
-            nounours.doAnimation(animation);
+            AnimationRegistry registry = getAnimationRegistry();
+            Animation animation = registry == null ? null : registry.get(menuItem.getId());
+            if (animation != null)
+                nounours.doAnimation(animation);
+        }
+    }
+
+    /**
+     * Displays the frames of one animation. Each run displays the frames whose
+     * deadline has passed, and schedules the next run at the deadline of the
+     * next frame.
+     */
+    private class AnimationRun implements Runnable {
+        private final Animation animation;
+        private final List<AnimationImage> images;
+        private final boolean isDynamicAnimation;
+        private final NounoursClock clock = nounours.getClock();
+        // The frame deadlines are on the clock of the sound, if any.
+        private AnimationClock animationClock = null;
+        private int repeatIndex = 0;
+        private int frameIndex = 0;
+        private long frameTimeUs = 0;
+        private Future<?> nextFrame = null;
+        private boolean isFinished = false;
+
+        AnimationRun(Animation animation, boolean isDynamicAnimation) {
+            this.animation = animation;
+            this.images = animation.getImages();
+            this.isDynamicAnimation = isDynamicAnimation;
+        }
+
+        @Override
+        public void run() {
+            if (animationClock == null) {
+                Trace.debug(this, "Do animation " + animation.getId());
+                animationClock = new AnimationClock(clock, soundHandler, animation.getSoundId());
+            }
+            // Display the frames until the next deadline is in the future.
+            while (true) {
+                synchronized (SwingNounoursAnimationHandler.this) {
+                    if (isFinished)
+                        return;
+                }
+                long delayMillis = animationClock.getDelayMillis(frameTimeUs);
+                if (delayMillis > 0) {
+                    scheduleNextFrame(delayMillis);
+                    return;
+                }
+                if (repeatIndex >= animation.getRepeat() || images.isEmpty()) {
+                    finish(false);
+                    return;
+                }
+                AnimationImage image = images.get(frameIndex);
+                try {
+                    nounours.setImage(image.getImage());
+                } catch (RuntimeException e) {
+                    // Don't leave a broken animation running.
+                    Trace.debug(this, e);
+                    finish(true);
+                    return;
+                }
+                animationClock.onFrameShown(frameTimeUs);
+                frameTimeUs += (long) (animation.getInterval() * image.getDuration() * 1000);
+                if (++frameIndex == images.size()) {
+                    frameIndex = 0;
+                    repeatIndex++;
+                }
+            }
+        }
+
+        void scheduleNextFrame(long delayMillis) {
+            synchronized (SwingNounoursAnimationHandler.this) {
+                if (!isFinished)
+                    nextFrame = clock.schedule(this, delayMillis);
+            }
+        }
+
+        /**
+         * @param interrupted
+         *            true if the animation is stopped before its end.
+         */
+        void finish(boolean interrupted) {
+            synchronized (SwingNounoursAnimationHandler.this) {
+                if (isFinished)
+                    return;
+                isFinished = true;
+                if (nextFrame != null)
+                    nextFrame.cancel(false);
+            }
+            if (interrupted)
+                Trace.debug(this, animation.getLabel() + " interrupted");
+            if (animationClock != null)
+                animationClock.report(animation.getId());
+            if (!isDynamicAnimation)
+                nounours.reset();
+            // No longer doing an animation.
+            synchronized (SwingNounoursAnimationHandler.this) {
+                if (currentAnimation == this) {
+                    currentAnimation = null;
+                    isDoingAnimation = false;
+                }
+            }
         }
     }
 
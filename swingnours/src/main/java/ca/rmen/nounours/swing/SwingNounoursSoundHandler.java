@@ -20,6 +20,8 @@ package ca.rmen.nounours.swing;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
@@ -28,15 +30,17 @@ import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.Track;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.BooleanControl;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
 import ca.rmen.nounours.Nounours;
 import ca.rmen.nounours.NounoursSoundHandler;
 import ca.rmen.nounours.data.Sound;
+import ca.rmen.nounours.data.Theme;
 
 /**
  *
@@ -48,7 +52,28 @@ public class SwingNounoursSoundHandler implements NounoursSoundHandler, MetaEven
     private Nounours nounours = null;
     private Sequencer sequencer = null;
 
-    SourceDataLine auline = null;
+    // Wav sounds are played on the left channel only.
+    private static final float WAV_PAN = -1.0f;
+    private static final float WAV_GAIN = 1.0f;
+
+    // The line of the last wav played when there's no mixer.
+    private volatile SourceDataLine auline = null;
+    // If true, midi sounds are rendered to PCM when the theme is loaded, and
+    // played on the mixer.
+    private static final String PROP_MIDI_PRERENDER = "nounours.midi.prerender";
+
+    // Map of sound id to decoded wav or rendered midi sound, for the current
+    // theme.
+    private final Map<String, DecodedSound> decodedSounds = new HashMap<String, DecodedSound>();
+    // Map of sound id to parsed midi sequence, for the current theme.
+    private final Map<String, Sequence> sequences = new HashMap<String, Sequence>();
+    private volatile SoundMixer mixer = null;
+    // The last sound played, and its voice on the mixer, or -1 if it's not on
+    // the mixer.
+    private volatile String playingSoundId = null;
+    private volatile int playingVoiceId = -1;
+    private volatile boolean isPlayingMidi = false;
+    private volatile boolean isSoundEnabled = true;
 
     public SwingNounoursSoundHandler(Nounours nounours) {
         this.nounours = nounours;
@@ -71,10 +96,13 @@ public class SwingNounoursSoundHandler implements NounoursSoundHandler, MetaEven
     public void playSound(String soundId) {
         Trace.debug(this,"playSound " + soundId);
         Sound sound = nounours.getSound(soundId);
-        if (sound.getFilename().toLowerCase().endsWith("mid")) {
+        playingVoiceId = -1;
+        isPlayingMidi = false;
+        playingSoundId = soundId;
+        if (isPcm(sound)) {
+            playPcm(sound);
+        } else if (isMidi(sound)) {
             playMidi(sound);
-        } else if (sound.getFilename().toLowerCase().endsWith("wav")) {
-            playWav(sound);
         }
     }
 
@@ -85,19 +113,30 @@ public class SwingNounoursSoundHandler implements NounoursSoundHandler, MetaEven
      */
     private void playMidi(Sound sound) {
         try {
-            // Create a midi sequence from the sound file.
-            Sequence sequence = MidiSystem.getSequence(new FileInputStream(sound.getFilename()));
-            Trace.debug(this,"Midi has " + sequence.getTracks().length + " tracks");
+            Sequence sequence;
+            synchronized (this) {
+                sequence = sequences.get(sound.getId());
+            }
+            if (sequence == null)
+                sequence = readSequence(sound);
 
-            // Try to open the sequencer
-            sequencer.open();
+            // The sequencer stays open between sounds.
+            if (!sequencer.isOpen())
+                sequencer.open();
             if (!sequencer.isOpen()) {
                 Trace.debug(this,"Problem opening sequencer");
                 return;
             }
             // Try to play the file.
-            sequencer.setSequence(sequence);
+            if (sequencer.isRunning())
+                sequencer.stop();
+            if (sequencer.getSequence() != sequence) {
+                sequencer.setSequence(sequence);
+                muteTracks(sequence, !isSoundEnabled);
+            }
+            sequencer.setTickPosition(0);
             sequencer.start();
+            isPlayingMidi = true;
             Trace.debug(this,"playing " + sound.getId());
 
         } catch (Exception e) {
@@ -106,73 +145,213 @@ public class SwingNounoursSoundHandler implements NounoursSoundHandler, MetaEven
         }
     }
 
+    private Sequence readSequence(Sound sound) throws Exception {
+        FileInputStream is = new FileInputStream(sound.getFilename());
+        try {
+            Sequence sequence = MidiSystem.getSequence(is);
+            Trace.debug(this,"Midi has " + sequence.getTracks().length + " tracks");
+            return sequence;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Decode the wav sounds of the theme, and add them to the mixer, so that
+     * they start as soon as they're played. Parse the midi sounds, and render
+     * them for the mixer if {@value #PROP_MIDI_PRERENDER} is true. This
+     * replaces the sounds of the previous theme.
+     *
+     * @param theme
+     *            the theme whose sounds we'll play.
+     */
+    synchronized void cacheSounds(Theme theme) {
+        long before = System.currentTimeMillis();
+        if (mixer == null) {
+            try {
+                SoundMixer newMixer = new SoundMixer();
+                newMixer.setMuted(!isSoundEnabled);
+                newMixer.start();
+                mixer = newMixer;
+            } catch (LineUnavailableException e) {
+                Trace.debug(this, "No line for the mixer, sounds won't overlap: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                Trace.debug(this, "No line for the mixer, sounds won't overlap: " + e.getMessage());
+            }
+        } else {
+            mixer.clearSounds();
+        }
+        decodedSounds.clear();
+        sequences.clear();
+        long totalSize = 0;
+        int wavCount = 0;
+        boolean prerenderMidi = Boolean.getBoolean(PROP_MIDI_PRERENDER) && mixer != null;
+        for (Sound sound : theme.getSounds().values()) {
+            if (isMidi(sound)) {
+                try {
+                    Sequence sequence = readSequence(sound);
+                    sequences.put(sound.getId(), sequence);
+                    if (prerenderMidi) {
+                        long beforeRender = System.currentTimeMillis();
+                        DecodedSound renderedSound = MidiRenderer.render(sequence, mixer.getFormat());
+                        decodedSounds.put(sound.getId(), renderedSound);
+                        totalSize += renderedSound.getData().length;
+                        mixer.addSound(sound.getId(), renderedSound);
+                        Trace.debug(this, "Rendered " + sound.getId() + " (" + renderedSound.getDuration() + "ms) in "
+                                + (System.currentTimeMillis() - beforeRender) + "ms");
+                    }
+                } catch (Exception e) {
+                    Trace.debug(this, "Could not load " + sound.getFilename() + ": " + e);
+                }
+                continue;
+            }
+            if (!isWav(sound))
+                continue;
+            try {
+                DecodedSound decodedSound = DecodedSound.decode(new File(sound.getFilename()));
+                decodedSounds.put(sound.getId(), decodedSound);
+                totalSize += decodedSound.getData().length;
+                wavCount++;
+                if (mixer != null)
+                    mixer.addSound(sound.getId(), decodedSound);
+            } catch (Exception e) {
+                Trace.debug(this, "Could not decode " + sound.getFilename() + ": " + e);
+            }
+        }
+        // Open the sequencer now, rather than when the first midi is played.
+        if (sequences.size() > decodedSounds.size() - wavCount && !sequencer.isOpen()) {
+            try {
+                sequencer.open();
+            } catch (MidiUnavailableException e) {
+                Trace.debug(this, "Could not open the sequencer: " + e.getMessage());
+            }
+        }
+        Trace.debug(this, "Decoded " + decodedSounds.size() + " sounds (" + totalSize / 1024 + "KB) and parsed "
+                + sequences.size() + " midi sequences in " + (System.currentTimeMillis() - before) + "ms");
+    }
+
+    private static boolean isWav(Sound sound) {
+        return sound.getFilename().toLowerCase().endsWith("wav");
+    }
+
+    private static boolean isMidi(Sound sound) {
+        return sound.getFilename().toLowerCase().endsWith("mid");
+    }
+
     /**
-     * Play a wav file in a separate thread.
+     * @return true if the sound was decoded or rendered to PCM.
+     */
+    private synchronized boolean isPcm(Sound sound) {
+        return decodedSounds.containsKey(sound.getId());
+    }
+
+    /**
+     * Play a decoded sound on the mixer, or on a new audio line if there's no
+     * mixer.
      *
      * @param sound
      */
-    private void playWav(final Sound sound) {
+    private void playPcm(final Sound sound) {
+        SoundMixer currentMixer;
+        final DecodedSound decodedSound;
+        synchronized (this) {
+            currentMixer = mixer;
+            decodedSound = decodedSounds.get(sound.getId());
+        }
+        if (decodedSound == null) {
+            Trace.debug(this, "No decoded sound for " + sound.getId());
+            return;
+        }
+        if (currentMixer != null) {
+            playingVoiceId = currentMixer.play(sound.getId(), WAV_GAIN, WAV_PAN);
+            return;
+        }
+        // Write the sound to a new line in a separate thread.
         Runnable wavRunnable = new Runnable() {
             public void run() {
                 try {
-
-                    // Read the wav file into an audio stream.
-                    File file = new File(sound.getFilename());
-                    AudioInputStream soundStream = AudioSystem.getAudioInputStream(file);
-                    // Don't really know what the following lines do -- copied
-                    // them from somewhere :)
-                    javax.sound.sampled.AudioFormat format = soundStream.getFormat();
-                    DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-                    auline = (SourceDataLine) AudioSystem.getLine(info);
-                    auline.open(format);
-                    if (auline.isControlSupported(FloatControl.Type.PAN)) {
-                        FloatControl pan = (FloatControl) auline.getControl(FloatControl.Type.PAN);
-                        pan.setValue(-1.0f);
-                    }
-
-                    // Start playing the audio.
-                    auline.start();
-                    // Play the audio in blocks.
-                    int nBytesRead = 0;
-                    byte[] abData = new byte[524288];
-                    while (nBytesRead != -1) {
-                        nBytesRead = soundStream.read(abData, 0, abData.length);
-                        if (nBytesRead >= 0)
-                            auline.write(abData, 0, nBytesRead);
+                    DataLine.Info info = new DataLine.Info(SourceDataLine.class, decodedSound.getFormat());
+                    SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+                    auline = line;
+                    line.open(decodedSound.getFormat());
+                    muteLine(line, !isSoundEnabled);
+                    if (line.isControlSupported(FloatControl.Type.PAN)) {
+                        FloatControl pan = (FloatControl) line.getControl(FloatControl.Type.PAN);
+                        pan.setValue(WAV_PAN);
                     }
+                    line.start();
+                    line.write(decodedSound.getData(), 0, decodedSound.getData().length);
                     // Cleanup after the wav is done playing.
-                    auline.drain();
-                    auline.close();
-                    auline = null;
+                    line.drain();
+                    line.close();
                 } catch (Exception e) {
-                    Trace.debug(this,e);
-                    e.printStackTrace();
+                    Trace.debug(this, e);
                 }
             }
         };
         new Thread(wavRunnable).start();
     }
 
+    /**
+     * @param soundId
+     *            the id of a sound
+     * @return the position, in microseconds, of the given sound which is being
+     *         heard, or -1 if this sound isn't playing. The position comes from
+     *         the audio line or the sequencer, so it follows the audio clock.
+     */
+    long getPlaybackPosition(String soundId) {
+        if (!soundId.equals(playingSoundId))
+            return -1;
+        if (isPlayingMidi)
+            return sequencer.isRunning() ? sequencer.getMicrosecondPosition() : -1;
+        SoundMixer currentMixer = mixer;
+        int voiceId = playingVoiceId;
+        if (currentMixer != null && voiceId >= 0)
+            return currentMixer.getVoicePosition(voiceId);
+        SourceDataLine line = auline;
+        if (line != null && line.isActive())
+            return line.getMicrosecondPosition();
+        return -1;
+    }
+
     /**
      * Stop playback of sound, if sound is playing
      */
     public void stopSound() {
         Trace.debug(this,"stop sound");
-        // Close the MidiDevice & free resources
+        // Keep the sequencer open, so the next midi starts quickly.
         if (sequencer.isRunning())
             sequencer.stop();
-        if (sequencer.isOpen())
-            sequencer.close();
         // Stop any wav playing.
-        if (auline != null) {
-            auline.stop();
-            auline.close();
+        playingSoundId = null;
+        SoundMixer currentMixer = mixer;
+        if (currentMixer != null)
+            currentMixer.stopAll();
+        SourceDataLine line = auline;
+        if (line != null) {
+            line.stop();
+            line.close();
         }
 
     }
 
     /**
-     * Called when the end of the midi file is reached. Free up midi resources.
+     * Stop the sounds, the mixing thread and the sequencer. No sound can be
+     * played after this.
+     */
+    synchronized void shutdown() {
+        stopSound();
+        if (mixer != null) {
+            mixer.shutdown();
+            mixer = null;
+        }
+        if (sequencer.isOpen())
+            sequencer.close();
+    }
+
+    /**
+     * Called when the end of the midi file is reached. The sequencer stays
+     * open for the next midi sound.
      *
      * @see javax.sound.midi.MetaEventListener#meta(javax.sound.midi.MetaMessage)
      */
@@ -182,22 +361,40 @@ public class SwingNounoursSoundHandler implements NounoursSoundHandler, MetaEven
         if (meta.getType() == 47) {
             Trace.debug(this,"Finished playing sound");
             if (sequencer.isRunning())
-                stopSound();
+                sequencer.stop();
         }
     }
     /**
-     * Mute or unmute the sound. Note that this will only have effect for the
-     * current sequence which is playing!
+     * Mute or unmute the sound: the midi sequence, the mixer, which plays the
+     * wav and prerendered midi sounds, and the wav line if there's no mixer.
+     * Sounds started later are muted too.
      *
      * @see ca.rmen.nounours.Nounours#setEnableSoundImpl(boolean)
      */
     public void setEnableSound(boolean enableSound) {
+        isSoundEnabled = enableSound;
+        SoundMixer currentMixer = mixer;
+        if (currentMixer != null)
+            currentMixer.setMuted(!enableSound);
+        SourceDataLine line = auline;
+        if (line != null && line.isOpen())
+            muteLine(line, !enableSound);
         Sequence sequence = sequencer.getSequence();
-        if(sequence == null)
-            return;
+        if (sequence != null)
+            muteTracks(sequence, !enableSound);
+    }
+
+    private void muteTracks(Sequence sequence, boolean mute) {
         Track[] tracks = sequence.getTracks();
         for (int i = 0; i < tracks.length; i++) {
-            sequencer.setTrackMute(i, !enableSound);
+            sequencer.setTrackMute(i, mute);
+        }
+    }
+
+    private static void muteLine(SourceDataLine line, boolean mute) {
+        if (line.isControlSupported(BooleanControl.Type.MUTE)) {
+            BooleanControl muteControl = (BooleanControl) line.getControl(BooleanControl.Type.MUTE);
+            muteControl.setValue(mute);
         }
     }
 
@@ -18,14 +18,22 @@
  */
 package ca.rmen.nounours.swing;
 
+import ca.rmen.nounours.HapticScheduler;
+import ca.rmen.nounours.NounoursHapticHandler;
 import ca.rmen.nounours.NounoursVibrateHandler;
+import ca.rmen.nounours.data.HapticPattern;
 
 /**
+ * Prints the vibrations to the console. Nounours schedules the vibrations
+ * through {@link #setVibrating(boolean)}. Other callers of doVibrate share one
+ * scheduler, so overlapping vibrations are merged.
  *
  * @author Carmen Alvarez
  *
  */
-public class SwingNounoursVibrateHandler implements NounoursVibrateHandler {
+public class SwingNounoursVibrateHandler implements NounoursVibrateHandler, NounoursHapticHandler {
+
+    private HapticScheduler hapticScheduler = null;
 
     /**
      * This implementation just prints "vibrate" to the console.
@@ -35,21 +43,7 @@ public class SwingNounoursVibrateHandler implements NounoursVibrateHandler {
     @Override
     public void doVibrate(final long duration) {
         Trace.debug(this,"Will vibrate for " + duration + " milliseconds");
-        Runnable doVibrate = new Runnable() {
-            public void run() {
-                for (int i = 0; i < duration / 500; i++) {
-                    Trace.debug(this,"Vibrating");
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        // Do nothing
-                    }
-                }
-
-            }
-        };
-        new Thread(doVibrate).start();
-
+        getHapticScheduler().play(HapticPattern.continuous(duration));
     }
 
     /**
@@ -59,9 +53,23 @@ public class SwingNounoursVibrateHandler implements NounoursVibrateHandler {
      */
     @Override
     public void doVibrate(long duration, long interval) {
-        doVibrate(duration);
-
+        Trace.debug(this,"Will vibrate for " + duration + " milliseconds in pulses of " + interval);
+        getHapticScheduler().play(HapticPattern.pulses(duration, interval));
     }
 
+    /**
+     * This implementation just prints "vibrating" to the console.
+     *
+     * @see ca.rmen.nounours.NounoursHapticHandler#setVibrating(boolean)
+     */
+    @Override
+    public void setVibrating(boolean vibrating) {
+        Trace.debug(this, vibrating ? "Vibrating" : "Stopped vibrating");
+    }
 
+    private synchronized HapticScheduler getHapticScheduler() {
+        if (hapticScheduler == null)
+            hapticScheduler = new HapticScheduler(this);
+        return hapticScheduler;
+    }
 }
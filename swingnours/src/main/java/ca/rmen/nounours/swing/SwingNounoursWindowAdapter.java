@@ -31,9 +31,9 @@ import ca.rmen.nounours.Nounours;
 public class SwingNounoursWindowAdapter extends WindowAdapter {
 
     private Nounours nounours = null;
-    private CachedImageComponent component = null;
+    private ICachedImageComponent component = null;
 
-    public SwingNounoursWindowAdapter(Nounours nounours, CachedImageComponent component) {
+    public SwingNounoursWindowAdapter(Nounours nounours, ICachedImageComponent component) {
         this.nounours = nounours;
         this.component = component;
     }
@@ -56,6 +56,15 @@ public class SwingNounoursWindowAdapter extends WindowAdapter {
         component.repaint();
     }
 
+    /**
+     * Stop the threads of nounours when the window is closed.
+     */
+    @Override
+    public void windowClosing(WindowEvent evt) {
+        Trace.debug(this, "windowClosing");
+        nounours.release();
+    }
+
     /**
      * Call onResume() when the window becomes deiconified.
      */
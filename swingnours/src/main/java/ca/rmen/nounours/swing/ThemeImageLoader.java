@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015 Carmen Alvarez.
+ *
+ * This file is part of Nounours.
+ *
+ * Nounours is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Nounours is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Nounours.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.rmen.nounours.swing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.rmen.nounours.data.Image;
+import ca.rmen.nounours.data.ImageLayer;
+import ca.rmen.nounours.data.ImageVariant;
+import ca.rmen.nounours.data.Theme;
+
+/**
+ * Reads the image files of a theme, and decodes them into images which are
+ * ready to be drawn.
+ *
+ * @author Carmen Alvarez
+ *
+ */
+class ThemeImageLoader {
+
+    private final CompatibleImageConverter imageConverter = new CompatibleImageConverter();
+    private final DecodedImageCache decodedImageCache;
+    private final ImageDecoder imageDecoder;
+
+    /**
+     * A file to read for an image, and how to decode it.
+     */
+    static class ImageFile {
+        private final String filename;
+        private final String decodeSpec;
+
+        ImageFile(String filename, String decodeSpec) {
+            this.filename = filename;
+            this.decodeSpec = decodeSpec;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ImageFile))
+                return false;
+            ImageFile other = (ImageFile) o;
+            return filename.equals(other.filename) && decodeSpec.equals(other.decodeSpec);
+        }
+
+        @Override
+        public int hashCode() {
+            return filename.hashCode() * 31 + decodeSpec.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return filename + "(" + decodeSpec + ")";
+        }
+    }
+
+    /**
+     * @param decodedImageCache
+     *            if not null, images are only decoded if they're not already in
+     *            this cache.
+     * @param imageDecoder
+     *            decodes the image files.
+     */
+    ThemeImageLoader(DecodedImageCache decodedImageCache, ImageDecoder imageDecoder) {
+        this.decodedImageCache = decodedImageCache;
+        this.imageDecoder = imageDecoder;
+    }
+
+    /**
+     * @return for each image of the theme, the file to use to display the
+     *         theme in an area of the given size: the smallest variant of the
+     *         image which covers the area. The file is decoded for the size of
+     *         the theme scaled to fit in the area. Images made of layers are not
+     *         included: their layers are loaded by {@link #loadLayers(Theme)}.
+     */
+    Map<String, ImageFile> selectImageFiles(Theme theme, int displayWidth, int displayHeight) {
+        if (displayWidth <= 0 || displayHeight <= 0) {
+            displayWidth = theme.getWidth();
+            displayHeight = theme.getHeight();
+        }
+        // The size of the image, scaled to fit in the display.
+        float ratio = Math.min((float) displayWidth / theme.getWidth(), (float) displayHeight / theme.getHeight());
+        int width = (int) Math.ceil(theme.getWidth() * ratio);
+        int height = (int) Math.ceil(theme.getHeight() * ratio);
+        Map<String, ImageFile> result = new HashMap<String, ImageFile>();
+        for (Image image : theme.getImages().values()) {
+            if (!image.getLayers().isEmpty())
+                continue;
+            ImageVariant variant = image.getVariant(width, height);
+            if (variant == null)
+                variant = new ImageVariant(theme.getWidth(), theme.getHeight(), image.getFilename());
+            String decodeSpec = imageDecoder.getDecodeSpec(variant.getWidth(), variant.getHeight(), width, height);
+            result.put(image.getId(), new ImageFile(variant.getFilename(), decodeSpec));
+        }
+        return result;
+    }
+
+    /**
+     * @param imageFiles
+     *            map of image id to the file to read for that image.
+     * @return map of image id to decoded image, for the images which could be
+     *         read.
+     */
+    Map<String, BufferedImage> load(Map<String, ImageFile> imageFiles) {
+        long before = System.currentTimeMillis();
+        Map<String, BufferedImage> result = new HashMap<String, BufferedImage>();
+        long pixelBytes = 0;
+        for (Map.Entry<String, ImageFile> imageFile : imageFiles.entrySet()) {
+            BufferedImage bufImage = load(imageFile.getKey(), imageFile.getValue());
+            if (bufImage != null) {
+                result.put(imageFile.getKey(), bufImage);
+                pixelBytes += getSize(bufImage);
+            }
+        }
+        long duration = System.currentTimeMillis() - before;
+        Trace.debug(this, "Loaded " + result.size() + " images in " + duration + "ms, " + pixelBytes / 1024
+                + "KB of pixels" + (result.isEmpty() ? "" : " (" + duration / result.size() + "ms and "
+                + pixelBytes / 1024 / result.size() + "KB per image)"));
+        return result;
+    }
+
+    /**
+     * @return map of layer file name to decoded layer, for all the layers of
+     *         the images of the theme. Layers are decoded at the theme
+     *         resolution, because their positions are in that resolution.
+     */
+    Map<String, BufferedImage> loadLayers(Theme theme) {
+        Map<String, ImageFile> layerFiles = new HashMap<String, ImageFile>();
+        for (Image image : theme.getImages().values()) {
+            for (ImageLayer layer : image.getLayers())
+                layerFiles.put(layer.getFilename(), new ImageFile(layer.getFilename(), FullImageDecoder.DECODE_SPEC));
+        }
+        if (layerFiles.isEmpty())
+            return new HashMap<String, BufferedImage>();
+        return load(layerFiles);
+    }
+
+    /**
+     * Read the image from file and decode it. If we have a decodedImageCache,
+     * the image is only decoded if it's not already there.
+     *
+     * @param imageId
+     *            the id of the image, for logging.
+     * @param imageFile
+     *            the image file.
+     * @return the decoded image, or null if it could not be read.
+     */
+    BufferedImage load(String imageId, ImageFile imageFile) {
+        BufferedImage bufImage;
+        InputStream imageInputStream = null;
+        try {
+            imageInputStream = readFile(imageFile.filename);
+            if (imageInputStream == null) {
+                Trace.debug(this, "Could not read file " + imageFile.filename);
+                return null;
+            }
+            byte[] imageData = readBytes(imageInputStream);
+            String key = null;
+            bufImage = null;
+            if (decodedImageCache != null) {
+                key = DecodedImageCache.getKey(imageData, imageFile.decodeSpec);
+                bufImage = decodedImageCache.read(key);
+            }
+            if (bufImage == null) {
+                long before = System.nanoTime();
+                bufImage = imageDecoder.decode(imageData, imageFile.decodeSpec);
+                if (bufImage == null)
+                    return null;
+                Trace.debug(this, "Decoded " + imageFile + " to " + bufImage.getWidth() + "x" + bufImage.getHeight()
+                        + " in " + (System.nanoTime() - before) / 1000 + "us");
+                if (decodedImageCache != null)
+                    decodedImageCache.write(key, bufImage);
+            }
+            // Convert the image once now, rather than each time it is drawn.
+            return imageConverter.convert(imageId, bufImage);
+        } catch (IOException e) {
+            Trace.debug(this, imageId + "," + imageFile);
+            Trace.debug(this, e);
+            return null;
+        } finally {
+            if (imageInputStream != null) {
+                try {
+                    imageInputStream.close();
+                } catch (IOException e) {
+                    Trace.debug(this, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the approximate memory used by the pixels of the image.
+     */
+    private static long getSize(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+
+    /**
+     * @return the remaining content of the given stream.
+     */
+    private static byte[] readBytes(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) >= 0)
+            os.write(buffer, 0, bytesRead);
+        return os.toByteArray();
+    }
+
+    /**
+     * @return a stream on the given file or http URL, or null if the file
+     *         doesn't exist.
+     */
+    InputStream readFile(String filename) throws IOException {
+        InputStream imageInputStream = null;
+
+        if (filename.startsWith("http://")) {
+            URL imageUrl = new URL(filename);
+            imageInputStream = imageUrl.openStream();
+
+        } else {
+            File file = new File(filename);
+            if (!file.exists() || !file.isFile()) {
+                Trace.debug(this, filename + " is not a valid file");
+                return null;
+            }
+            imageInputStream = new FileInputStream(file);
+        }
+        return imageInputStream;
+    }
+}